@@ -0,0 +1,421 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.LongAdder;
+
+interface BenchmarkBody {
+    // Ejecuta la operación 'operations' veces y devuelve un valor derivado de los resultados
+    // para que el JIT no pueda eliminar el trabajo
+    long run(int operations) throws Exception;
+}
+
+class BenchmarkCase {
+    private final String name;
+    private final int batchSize;
+    private final BenchmarkBody body;
+
+    public BenchmarkCase(String name, BenchmarkBody body) {
+        this(name, 1024, body);
+    }
+
+    // batchSize: operaciones por llamada a body; las operaciones largas usan lotes pequeños
+    public BenchmarkCase(String name, int batchSize, BenchmarkBody body) {
+        this.name = name;
+        this.batchSize = batchSize;
+        this.body = body;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public BenchmarkBody getBody() {
+        return body;
+    }
+}
+
+class BenchmarkResult {
+    private final String name;
+    private final int threads;
+    private final double nanosPerOperation;
+    private final double operationsPerSecond;
+    private final double bytesPerOperation;
+    private final long gcCount;
+    private final long gcMillis;
+
+    public BenchmarkResult(String name, int threads, double nanosPerOperation, double operationsPerSecond,
+                           double bytesPerOperation, long gcCount, long gcMillis) {
+        this.name = name;
+        this.threads = threads;
+        this.nanosPerOperation = nanosPerOperation;
+        this.operationsPerSecond = operationsPerSecond;
+        this.bytesPerOperation = bytesPerOperation;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    public String getKey() {
+        return name + "@" + threads;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public double getNanosPerOperation() {
+        return nanosPerOperation;
+    }
+
+    public double getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    public double getBytesPerOperation() {
+        return bytesPerOperation;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+}
+
+// Arnés de medición: calentamiento, medición por tiempo, bytes asignados por operación (contador por
+// hilo de la JVM) y recolecciones ocurridas durante la medición
+class BenchmarkRunner {
+    private final long warmupNanos;
+    private final long measureNanos;
+    private volatile long blackhole;
+
+    public BenchmarkRunner(long warmupMillis, long measureMillis) {
+        this.warmupNanos = warmupMillis * 1_000_000L;
+        this.measureNanos = measureMillis * 1_000_000L;
+    }
+
+    public BenchmarkResult run(BenchmarkCase benchmark, int threads) throws Exception {
+        LongAdder operations = new LongAdder();
+        LongAdder busyNanos = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        CyclicBarrier startMeasuring = new CyclicBarrier(threads + 1);
+        CyclicBarrier stopMeasuring = new CyclicBarrier(threads + 1);
+        List<Thread> workers = new ArrayList<>();
+        Exception[] failure = new Exception[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    loop(benchmark, warmupNanos);
+                    startMeasuring.await();
+
+                    long allocatedBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    long done = loop(benchmark, measureNanos);
+                    long elapsed = System.nanoTime() - start;
+                    allocatedBytes.add(allocatedBytes() - allocatedBefore);
+                    operations.add(done);
+                    busyNanos.add(elapsed);
+
+                    stopMeasuring.await();
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                    startMeasuring.reset();
+                    stopMeasuring.reset();
+                }
+            }, "bench-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long gcCountBefore;
+        long gcMillisBefore;
+        long wall;
+        try {
+            startMeasuring.await();
+            gcCountBefore = gcCount();
+            gcMillisBefore = gcMillis();
+            long wallStart = System.nanoTime();
+            stopMeasuring.await();
+            wall = System.nanoTime() - wallStart;
+        } catch (BrokenBarrierException e) {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            throw failure[0] != null ? failure[0] : e;
+        }
+        long gcCountAfter = gcCount();
+        long gcMillisAfter = gcMillis();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long ops = Math.max(1, operations.sum());
+        return new BenchmarkResult(benchmark.getName(), threads,
+                (double) busyNanos.sum() / ops,
+                ops * 1_000_000_000.0 / wall,
+                (double) allocatedBytes.sum() / ops,
+                gcCountAfter - gcCountBefore,
+                gcMillisAfter - gcMillisBefore);
+    }
+
+    private long loop(BenchmarkCase benchmark, long durationNanos) throws Exception {
+        BenchmarkBody body = benchmark.getBody();
+        int batch = benchmark.getBatchSize();
+        long operations = 0;
+        long sink = 0;
+        long deadline = System.nanoTime() + durationNanos;
+        do {
+            sink += body.run(batch);
+            operations += batch;
+        } while (System.nanoTime() < deadline);
+        blackhole += sink;
+        return operations;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
+
+// Microbenchmarks de DocumentFactory y del camino de proceso para todas las combinaciones
+// de tipo, formato y país que ofrece DocumentProcessingSystem
+public class DocumentBenchmark {
+    private static final String[] PAISES = {"Colombia", "México", "Argentina", "Chile"};
+    private static final String[] TIPOS = {"factura", "contrato", "reporte", "certificado", "declaracion"};
+    private static final String[] FORMATOS = {"pdf", "doc", "docx", "txt", "csv", "xlsx"};
+
+    public static void main(String[] args) throws Exception {
+        long warmupMillis = 100;
+        long measureMillis = 300;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String filter = "";
+        Path compareWith = null;
+        Path saveTo = null;
+        double tolerance = 20;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--calentamiento-ms": warmupMillis = Long.parseLong(args[++i]); break;
+                case "--medicion-ms": measureMillis = Long.parseLong(args[++i]); break;
+                case "--hilos": threads = Integer.parseInt(args[++i]); break;
+                case "--filtro": filter = args[++i]; break;
+                case "--comparar": compareWith = Paths.get(args[++i]); break;
+                case "--guardar": saveTo = Paths.get(args[++i]); break;
+                case "--tolerancia": tolerance = Double.parseDouble(args[++i]); break;
+                default:
+                    System.out.println("Argumento no reconocido: " + args[i]);
+                    System.out.println("Uso: DocumentBenchmark [--filtro texto] [--hilos N] [--calentamiento-ms N]"
+                            + " [--medicion-ms N] [--comparar baseline.properties] [--tolerancia %]"
+                            + " [--guardar baseline.properties]");
+                    System.exit(2);
+            }
+        }
+
+        Path workDir = Files.createTempDirectory("document-bench");
+        List<BenchmarkCase> cases = createCases(workDir);
+        BenchmarkRunner runner = new BenchmarkRunner(warmupMillis, measureMillis);
+        List<BenchmarkResult> results = new ArrayList<>();
+
+        System.out.printf("%-42s %5s %12s %14s %10s %6s%n", "benchmark", "hilos", "ns/op", "ops/s", "B/op", "gc");
+        int[] threadCounts = threads > 1 ? new int[] {1, threads} : new int[] {1};
+        for (BenchmarkCase benchmark : cases) {
+            if (!benchmark.getName().contains(filter)) {
+                continue;
+            }
+            for (int threadCount : threadCounts) {
+                BenchmarkResult result = runner.run(benchmark, threadCount);
+                results.add(result);
+                System.out.printf("%-42s %5d %12.1f %14.0f %10.1f %6s%n", result.getName(), result.getThreads(),
+                        result.getNanosPerOperation(), result.getOperationsPerSecond(),
+                        result.getBytesPerOperation(), result.getGcCount() + "/" + result.getGcMillis() + "ms");
+            }
+        }
+
+        if (saveTo != null) {
+            save(results, saveTo, "DocumentBenchmark");
+            System.out.println("\nLínea base guardada en " + saveTo);
+        }
+        if (compareWith != null && compare(results, compareWith, tolerance) > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static List<BenchmarkCase> createCases(Path workDir) throws IOException {
+        DocumentFactory factory = new DocumentFactory();
+        List<BenchmarkCase> cases = new ArrayList<>();
+
+        for (String tipo : TIPOS) {
+            cases.add(new BenchmarkCase("factory/" + tipo, operations -> {
+                long sink = 0;
+                for (int i = 0; i < operations; i++) {
+                    sink += System.identityHashCode(factory.createDocument(tipo));
+                }
+                return sink;
+            }));
+        }
+
+        for (String tipo : TIPOS) {
+            for (String formato : FORMATOS) {
+                for (String pais : PAISES) {
+                    cases.add(new BenchmarkCase("process/" + tipo + "/" + formato + "/" + pais, operations -> {
+                        long sink = 0;
+                        for (int i = 0; i < operations; i++) {
+                            Document document = factory.createDocument(tipo);
+                            sink += document.process(formato, pais, DocumentPayload.EMPTY).getDetail().length();
+                        }
+                        return sink;
+                    }));
+                }
+            }
+        }
+
+        // Camino completo de DocumentProcessor: registro, reglas por país y armado del resultado
+        DocumentProcessor processor = new DocumentProcessor(factory);
+        processor.setRules(CountryRules.loadDefault(factory.getTypes()));
+        for (String tipo : TIPOS) {
+            for (String pais : PAISES) {
+                ManifestEntry entry = new ManifestEntry(2, tipo, "pdf", pais, null);
+                cases.add(new BenchmarkCase("handle/" + tipo + "/" + pais, operations -> {
+                    long sink = 0;
+                    for (int i = 0; i < operations; i++) {
+                        sink += processor.handle(entry).getStatus().ordinal();
+                    }
+                    return sink;
+                }));
+            }
+        }
+
+        // Costo de la instrumentación: registrar una medición suelta y el camino completo con métricas
+        ProcessingMetrics metrics = new ProcessingMetrics(factory.getTypes(), List.of(FORMATOS), List.of(PAISES));
+        int series = metrics.seriesOf("factura", "pdf", "Colombia");
+        cases.add(new BenchmarkCase("metricas/registrar", operations -> {
+            for (int i = 0; i < operations; i++) {
+                metrics.record(ProcessingStage.PROCESO, series, i & 4095);
+            }
+            return operations;
+        }));
+        DocumentProcessor measured = new DocumentProcessor(factory);
+        measured.setRules(CountryRules.loadDefault(factory.getTypes()));
+        measured.setMetrics(metrics);
+        for (String tipo : TIPOS) {
+            ManifestEntry entry = new ManifestEntry(2, tipo, "pdf", "Colombia", null);
+            cases.add(new BenchmarkCase("handle-metricas/" + tipo + "/Colombia", operations -> {
+                long sink = 0;
+                for (int i = 0; i < operations; i++) {
+                    sink += measured.handle(entry).getStatus().ordinal();
+                }
+                return sink;
+            }));
+        }
+
+        Path report = workDir.resolve("reporte.csv");
+        try (Writer writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            writer.write("periodo,cuenta,monto\n");
+            for (int i = 0; i < 10_000; i++) {
+                writer.write("2024-" + (i % 12 < 9 ? "0" : "") + (i % 12 + 1) + ",c" + (i % 50) + "," + i + ".25\n");
+            }
+        }
+        DocumentPayload payload = DocumentPayload.open(report);
+        for (String tipo : new String[] {"reporte", "declaracion"}) {
+            Document document = factory.createDocument(tipo);
+            cases.add(new BenchmarkCase("csv10k/" + tipo, 1, operations -> {
+                long sink = 0;
+                for (int i = 0; i < operations; i++) {
+                    sink += document.process("csv", "Chile", payload).getDetail().length();
+                }
+                return sink;
+            }));
+        }
+        return cases;
+    }
+
+    // También lo usan los benchmarks de notificaciones, que comparten este arnés
+    static void save(List<BenchmarkResult> results, Path path, String generator) throws IOException {
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (BenchmarkResult result : results) {
+            sorted.put(result.getKey(), String.format(Locale.ROOT, "%.1f", result.getNanosPerOperation()));
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# ns/op por benchmark@hilos; se regenera con " + generator + " --guardar <archivo>");
+            writer.newLine();
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    static int compare(List<BenchmarkResult> results, Path baselinePath, double tolerance) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader reader = Files.newBufferedReader(baselinePath, StandardCharsets.UTF_8)) {
+            baseline.load(reader);
+        }
+
+        int regressions = 0;
+        System.out.printf("%nComparación con %s (tolerancia %.0f%%)%n", baselinePath, tolerance);
+        for (BenchmarkResult result : results) {
+            String reference = baseline.getProperty(result.getKey());
+            if (reference == null) {
+                continue;
+            }
+            double expected = Double.parseDouble(reference);
+            double change = (result.getNanosPerOperation() - expected) * 100 / expected;
+            if (change > tolerance) {
+                regressions++;
+                System.out.printf("REGRESIÓN %-42s %10.1f ns/op (base %.1f, %+.1f%%)%n",
+                        result.getKey(), result.getNanosPerOperation(), expected, change);
+            }
+        }
+        System.out.println(regressions == 0 ? "Sin regresiones" : regressions + " regresiones");
+        return regressions;
+    }
+}
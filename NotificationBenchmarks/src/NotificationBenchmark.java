@@ -0,0 +1,196 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Despacha en el mismo hilo, para medir el camino de envío sin el salto entre hilos
+class InlineDispatcher extends ChannelDispatcher {
+
+    public InlineDispatcher() {
+        super(1);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> dispatch(ChannelImplementor channel, String recipient,
+                                                      String subject, String content, String priority) {
+        return CompletableFuture.completedFuture(deliver(channel, recipient, subject, content, priority));
+    }
+}
+
+// Canal que no hace nada, para aislar lo que asigna la notificación que lo usa
+class NoOpChannel implements ChannelImplementor {
+    private static final DeliveryResult DELIVERED = DeliveryResult.delivered("noop", "todos");
+
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        return DELIVERED;
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        return List.of();
+    }
+
+    @Override
+    public String getName() {
+        return "noop";
+    }
+}
+
+// Microbenchmarks del camino de envío con proveedores simulados sin latencia, con el arnés de
+// DocumentBenchmarks. Los casos concat/ aíslan cada concatenación por mensaje reemplazando lo que
+// hay debajo por algo que no asigna; B/op incluye los println del código, que van a un sumidero nulo
+public class NotificationBenchmark {
+    private static final String[] TYPES = {"urgente", "informativa", "marketing"};
+
+    public static void main(String[] args) throws Exception {
+        long warmupMillis = 100;
+        long measureMillis = 300;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String filter = "";
+        Path compareWith = null;
+        Path saveTo = null;
+        double tolerance = 20;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--calentamiento-ms": warmupMillis = Long.parseLong(args[++i]); break;
+                case "--medicion-ms": measureMillis = Long.parseLong(args[++i]); break;
+                case "--hilos": threads = Integer.parseInt(args[++i]); break;
+                case "--filtro": filter = args[++i]; break;
+                case "--comparar": compareWith = Paths.get(args[++i]); break;
+                case "--guardar": saveTo = Paths.get(args[++i]); break;
+                case "--tolerancia": tolerance = Double.parseDouble(args[++i]); break;
+                default:
+                    System.out.println("Argumento no reconocido: " + args[i]);
+                    System.out.println("Uso: NotificationBenchmark [--filtro texto] [--hilos N] [--calentamiento-ms N]"
+                            + " [--medicion-ms N] [--comparar baseline.properties] [--tolerancia %]"
+                            + " [--guardar baseline.properties]");
+                    System.exit(2);
+            }
+        }
+
+        List<BenchmarkCase> cases = createCases();
+        BenchmarkRunner runner = new BenchmarkRunner(warmupMillis, measureMillis);
+        List<BenchmarkResult> results = new ArrayList<>();
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            console.printf("%-42s %5s %12s %14s %10s %6s%n", "benchmark", "hilos", "ns/op", "ops/s", "B/op", "gc");
+            int[] threadCounts = threads > 1 ? new int[] {1, threads} : new int[] {1};
+            for (BenchmarkCase benchmark : cases) {
+                if (!benchmark.getName().contains(filter)) {
+                    continue;
+                }
+                for (int threadCount : threadCounts) {
+                    BenchmarkResult result = runner.run(benchmark, threadCount);
+                    results.add(result);
+                    console.printf("%-42s %5d %12.1f %14.0f %10.1f %6s%n", result.getName(), result.getThreads(),
+                            result.getNanosPerOperation(), result.getOperationsPerSecond(),
+                            result.getBytesPerOperation(), result.getGcCount() + "/" + result.getGcMillis() + "ms");
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        if (saveTo != null) {
+            DocumentBenchmark.save(results, saveTo, "NotificationBenchmark");
+            System.out.println("\nLínea base guardada en " + saveTo);
+        }
+        if (compareWith != null && DocumentBenchmark.compare(results, compareWith, tolerance) > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static List<BenchmarkCase> createCases() {
+        List<BenchmarkCase> cases = new ArrayList<>();
+        ChannelDispatcher inline = new InlineDispatcher();
+
+        // Notificación, canal, adaptador y proveedor reales; solo la red está simulada
+        Map<String, ChannelImplementor> channels = SimulatedChannels.create(SimulatedChannels.uniform(0, 0), null);
+        for (String type : TYPES) {
+            for (Map.Entry<String, ChannelImplementor> channel : channels.entrySet()) {
+                Notification notification = SimulatedChannels.notification(type, channel.getValue(), inline);
+                String recipient = SimulatedChannels.recipient(channel.getKey(), 1);
+                cases.add(new BenchmarkCase("envio/" + type + "/" + channel.getKey(), operations -> {
+                    long sink = 0;
+                    for (int i = 0; i < operations; i++) {
+                        sink += notification.send(recipient, "Servidor Caído", "El servidor principal no responde")
+                                .join().getDetail().length();
+                    }
+                    return sink;
+                }));
+            }
+        }
+
+        // "URGENTE: " + asunto y "ATENCIÓN INMEDIATA REQUERIDA:\n" + contenido
+        Notification urgent = new UrgentNotification(new NoOpChannel(), inline);
+        cases.add(new BenchmarkCase("concat/urgente", operations -> {
+            long sink = 0;
+            for (int i = 0; i < operations; i++) {
+                sink += urgent.send("admin@empresa.com", "Servidor Caído", "El servidor principal no responde")
+                        .join().getDetail().length();
+            }
+            return sink;
+        }));
+
+        // subject + ": " + content
+        SMSChannelImpl sms = new SMSChannelImpl(new SMSAdapter() {
+            @Override
+            public boolean sendSMS(String phoneNumber, String message, String priority) {
+                return message.length() > 0;
+            }
+
+            @Override
+            public boolean[] sendSMSBatch(List<String> phoneNumbers, String message, String priority) {
+                return new boolean[phoneNumbers.size()];
+            }
+        });
+        cases.add(new BenchmarkCase("concat/sms-canal", operations -> {
+            long sink = 0;
+            for (int i = 0; i < operations; i++) {
+                sink += sms.sendMessage("+573001234567", "Servidor Caído", "El servidor principal no responde",
+                        "HIGH").getDetail().length();
+            }
+            return sink;
+        }));
+
+        // priority.toLowerCase() + "_urgency"
+        TwilioSMSAdapter twilio = new TwilioSMSAdapter(new SimulatedTwilioService(new SimulatedBehavior(0, 0)));
+        cases.add(new BenchmarkCase("concat/twilio-adaptador", operations -> {
+            long sink = 0;
+            for (int i = 0; i < operations; i++) {
+                sink += twilio.sendSMS("+573001234567", "Servidor Caído: El servidor principal no responde", "HIGH")
+                        ? 1 : 0;
+            }
+            return sink;
+        }));
+
+        // Costo de la instrumentación y del agrupador con una repetida
+        ChannelMetrics metrics = new ChannelMetrics();
+        cases.add(new BenchmarkCase("metricas/registrar", operations -> {
+            for (int i = 0; i < operations; i++) {
+                metrics.record("sms", false, 1, 1, i & 4095);
+            }
+            return operations;
+        }));
+        NotificationCoalescer coalescer = new NotificationCoalescer(3_600_000, 1000);
+        ChannelImplementor noop = new NoOpChannel();
+        coalescer.submit("noop", noop, inline, "admin@empresa.com", "Servidor Caído", "primera", "HIGH");
+        cases.add(new BenchmarkCase("agrupador/repetida", operations -> {
+            long sink = 0;
+            for (int i = 0; i < operations; i++) {
+                sink += coalescer.submit("noop", noop, inline, "admin@empresa.com", "Servidor Caído",
+                        "El servidor principal no responde", "HIGH").isDone() ? 0 : 1;
+            }
+            return sink;
+        }));
+        return cases;
+    }
+}
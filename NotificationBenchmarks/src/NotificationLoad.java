@@ -0,0 +1,324 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Comportamiento de un proveedor simulado: latencia media con ±50% de variación y una tasa de errores
+class SimulatedBehavior {
+    private final long latencyNanos;
+    private final double errorRate;
+    private final LongAdder calls = new LongAdder();
+
+    public SimulatedBehavior(double latencyMillis, double errorRate) {
+        this.latencyNanos = (long) (latencyMillis * 1_000_000);
+        this.errorRate = errorRate;
+    }
+
+    // "latencia-ms:errores", por ejemplo "20:0.01"
+    public static SimulatedBehavior parse(String value) {
+        String[] parts = value.split(":");
+        return new SimulatedBehavior(Double.parseDouble(parts[0]), parts.length > 1 ? Double.parseDouble(parts[1]) : 0);
+    }
+
+    // Devuelve false si la llamada debe fallar
+    public boolean call() {
+        calls.increment();
+        if (latencyNanos > 0) {
+            long deadline = System.nanoTime() + latencyNanos / 2 + ThreadLocalRandom.current().nextLong(latencyNanos);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        return errorRate <= 0 || ThreadLocalRandom.current().nextDouble() >= errorRate;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+}
+
+// Los proveedores simulados reemplazan solo la llamada de red: adaptadores, canales y
+// notificaciones son los reales, así que se mide el mismo código que en producción
+class SimulatedExchangeServer extends OutlookExchangeServer {
+    private final SimulatedBehavior behavior;
+
+    public SimulatedExchangeServer(SimulatedBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public void sendExchangeEmail(String toAddress, String emailSubject, String emailBody, boolean isHighPriority) {
+        if (!behavior.call()) {
+            throw new IllegalStateException("Exchange simulado: 451 4.3.2 servidor ocupado");
+        }
+    }
+
+    @Override
+    public void sendExchangeEmail(List<String> toAddresses, String emailSubject, String emailBody,
+                                  boolean isHighPriority) {
+        if (!behavior.call()) {
+            throw new IllegalStateException("Exchange simulado: 451 4.3.2 servidor ocupado");
+        }
+    }
+}
+
+class SimulatedSMTPServer extends LegacySMTPServer {
+    private final SimulatedBehavior behavior;
+
+    public SimulatedSMTPServer(SimulatedBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public boolean relayMessage(String recipient, String title, String body, int priorityCode) {
+        return behavior.call();
+    }
+
+    @Override
+    public boolean relayMessage(List<String> recipients, String title, String body, int priorityCode) {
+        return behavior.call();
+    }
+}
+
+class SimulatedTwilioService extends TwilioSMSService {
+    private final SimulatedBehavior behavior;
+
+    public SimulatedTwilioService(SimulatedBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public boolean transmitSMS(String destinationNumber, String textContent, String urgencyLevel) {
+        return behavior.call();
+    }
+
+    @Override
+    public boolean[] transmitBulkSMS(List<String> destinationNumbers, String textContent, String urgencyLevel) {
+        boolean[] accepted = new boolean[destinationNumbers.size()];
+        java.util.Arrays.fill(accepted, behavior.call());
+        return accepted;
+    }
+}
+
+class SimulatedSlackAPI extends SlackWebAPI {
+    private final SimulatedBehavior behavior;
+
+    public SimulatedSlackAPI(SimulatedBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public void publishMessage(String workspace, String channelName, String messageTitle, String messageBody,
+                               boolean isPriority) {
+        if (!behavior.call()) {
+            throw new IllegalStateException("Slack simulado: 429 demasiadas solicitudes");
+        }
+    }
+
+    @Override
+    public void publishMessages(String workspace, List<String> channelNames, String messageTitle,
+                                String messageBody, boolean isPriority) {
+        if (!behavior.call()) {
+            throw new IllegalStateException("Slack simulado: 429 demasiadas solicitudes");
+        }
+    }
+}
+
+class SimulatedChannels {
+    public static final String[] CHANNELS = {"email-exchange", "email-smtp", "sms", "slack"};
+
+    // Un canal real por cada combinación de canal y adaptador; con metrics != null cada llamada se mide
+    public static Map<String, ChannelImplementor> create(Map<String, SimulatedBehavior> behaviors,
+                                                         ChannelMetrics metrics) {
+        Map<String, ChannelImplementor> channels = new LinkedHashMap<>();
+        channels.put("email-exchange", new EmailChannelImpl(
+                new OutlookExchangeAdapter(new SimulatedExchangeServer(behaviors.get("exchange")))));
+        channels.put("email-smtp", new EmailChannelImpl(
+                new LegacySMTPAdapter(new SimulatedSMTPServer(behaviors.get("smtp")))));
+        channels.put("sms", new SMSChannelImpl(
+                new TwilioSMSAdapter(new SimulatedTwilioService(behaviors.get("twilio")))));
+        channels.put("slack", new SlackChannelImpl(
+                new SlackWebAPIAdapter(new SimulatedSlackAPI(behaviors.get("slack")))));
+        if (metrics != null) {
+            for (Map.Entry<String, ChannelImplementor> entry : channels.entrySet()) {
+                entry.setValue(new MeteredChannel(entry.getValue(), entry.getKey(), metrics));
+            }
+        }
+        return channels;
+    }
+
+    public static Map<String, SimulatedBehavior> uniform(double latencyMillis, double errorRate) {
+        Map<String, SimulatedBehavior> behaviors = new LinkedHashMap<>();
+        for (String provider : new String[] {"exchange", "smtp", "twilio", "slack"}) {
+            behaviors.put(provider, new SimulatedBehavior(latencyMillis, errorRate));
+        }
+        return behaviors;
+    }
+
+    public static Notification notification(String type, ChannelImplementor channel, ChannelDispatcher dispatcher) {
+        switch (type) {
+            case "urgente":
+                return new UrgentNotification(channel, dispatcher);
+            case "marketing":
+                return new MarketingNotification(channel, dispatcher);
+            default:
+                return new InformativeNotification(channel, dispatcher);
+        }
+    }
+
+    public static String recipient(String channel, int i) {
+        switch (channel) {
+            case "sms":
+                return "+57300" + (1_000_000 + i % 1_000_000);
+            case "slack":
+                return "#equipo-" + i % 50;
+            default:
+                return "cliente" + i % 100_000 + "@empresa.com";
+        }
+    }
+}
+
+// Generador de carga: recorre en ronda todas las combinaciones de tipo de notificación y canal con
+// un número fijo de envíos en vuelo, a través del PriorityDispatcher de producción. Informa latencia
+// de punta a punta por combinación (incluida la espera en los carriles) y latencia por proveedor
+public class NotificationLoad {
+    private static final String[] TYPES = {"urgente", "informativa", "marketing"};
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 10;
+        int inFlight = 256;
+        double latencyMillis = 20;
+        double errorRate = 0.01;
+        Map<String, String> overrides = new LinkedHashMap<>();
+        Path metricsFile = null;
+        long metricsMillis = 1000;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--duracion-s": seconds = Integer.parseInt(args[++i]); break;
+                case "--en-vuelo": inFlight = Integer.parseInt(args[++i]); break;
+                case "--latencia-ms": latencyMillis = Double.parseDouble(args[++i]); break;
+                case "--errores": errorRate = Double.parseDouble(args[++i]); break;
+                case "--proveedor":
+                    String[] override = args[++i].split("=", 2);
+                    overrides.put(override[0], override[1]);
+                    break;
+                case "--metricas": metricsFile = Paths.get(args[++i]); break;
+                case "--metricas-ms": metricsMillis = Long.parseLong(args[++i]); break;
+                default:
+                    System.out.println("Argumento no reconocido: " + args[i]);
+                    System.out.println("Uso: NotificationLoad [--duracion-s N] [--en-vuelo N] [--latencia-ms N]"
+                            + " [--errores 0.01] [--proveedor exchange|smtp|twilio|slack=latencia-ms:errores]"
+                            + " [--metricas archivo.prom] [--metricas-ms N]");
+                    System.exit(2);
+            }
+        }
+
+        Map<String, SimulatedBehavior> behaviors = SimulatedChannels.uniform(latencyMillis, errorRate);
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            if (!behaviors.containsKey(override.getKey())) {
+                System.out.println("Proveedor desconocido: " + override.getKey());
+                System.exit(2);
+            }
+            behaviors.put(override.getKey(), SimulatedBehavior.parse(override.getValue()));
+        }
+
+        ChannelMetrics providerMetrics = new ChannelMetrics();
+        ChannelMetrics endToEnd = new ChannelMetrics();
+        Map<String, ChannelImplementor> channels = SimulatedChannels.create(behaviors, providerMetrics);
+        ChannelDispatcher dispatcher = PriorityDispatcher.getDefault();
+        List<String> keys = new ArrayList<>();
+        List<Notification> notifications = new ArrayList<>();
+        List<String> channelOf = new ArrayList<>();
+        for (String type : TYPES) {
+            for (Map.Entry<String, ChannelImplementor> channel : channels.entrySet()) {
+                keys.add(type + "/" + channel.getKey());
+                notifications.add(SimulatedChannels.notification(type, channel.getValue(), dispatcher));
+                channelOf.add(channel.getKey());
+            }
+        }
+
+        PrintStream console = System.out;
+        console.printf("%d combinaciones, %d en vuelo, %d s; proveedores: %s%n", keys.size(), inFlight, seconds,
+                describe(behaviors, overrides, latencyMillis, errorRate));
+        ChannelMetricsReporter reporter = metricsFile == null ? null
+                : new ChannelMetricsReporter(providerMetrics, metricsFile, metricsMillis);
+        LongAdder completed = new LongAdder();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "carga-progreso");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = {0};
+        progress.scheduleAtFixedRate(() -> {
+            long done = completed.sum();
+            console.printf("  %,d envíos (%,d/s)%n", done, done - last[0]);
+            last[0] = done;
+        }, 1, 1, TimeUnit.SECONDS);
+
+        // Las notificaciones y los canales escriben cada envío en consola; durante la carga se descarta
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Semaphore window = new Semaphore(inFlight);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        try {
+            for (int i = 0; System.nanoTime() < deadline; i++) {
+                int combination = i % keys.size();
+                String key = keys.get(combination);
+                window.acquire();
+                long sent = System.nanoTime();
+                notifications.get(combination)
+                        .send(SimulatedChannels.recipient(channelOf.get(combination), i), "Aviso " + i % 100,
+                                "Mensaje de prueba de carga número " + i)
+                        .whenComplete((result, error) -> {
+                            boolean ok = result != null && result.isDelivered();
+                            endToEnd.record(key, false, 1, ok ? 1 : 0, System.nanoTime() - sent);
+                            completed.increment();
+                            window.release();
+                        });
+            }
+            window.acquire(inFlight);
+        } finally {
+            System.setOut(console);
+            progress.shutdownNow();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (reporter != null) {
+            reporter.close();
+        }
+
+        System.out.printf("%nTotal: %,d envíos en %.1f s (%,.0f/s)%n", completed.sum(), elapsed,
+                completed.sum() / elapsed);
+        System.out.println("\nDe punta a punta por combinación (incluye la espera en los carriles):");
+        endToEnd.print();
+        System.out.println("\nPor llamada al proveedor:");
+        providerMetrics.print();
+        System.out.println("\nEspera por prioridad:");
+        PriorityDispatcher.getDefault().printStats();
+        System.exit(0);
+    }
+
+    private static String describe(Map<String, SimulatedBehavior> behaviors, Map<String, String> overrides,
+                                   double latencyMillis, double errorRate) {
+        StringBuilder text = new StringBuilder();
+        for (String provider : behaviors.keySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(provider).append('=').append(overrides.getOrDefault(provider, latencyMillis + ":" + errorRate));
+        }
+        return text.toString();
+    }
+}
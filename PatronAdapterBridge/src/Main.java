@@ -1,252 +1,4661 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 interface ChannelImplementor {
-    void sendMessage(String recipient, String subject, String content, String priority);
+    DeliveryResult sendMessage(String recipient, String subject, String content, String priority);
+
+    // Devuelve un resultado por mensaje, en el mismo orden
+    List<DeliveryResult> sendBatch(List<OutgoingMessage> messages);
+
+    String getName();
+}
+
+// Canal que entrega por su cuenta sin ocupar el hilo que llama (por ejemplo acumulando lotes)
+interface AsyncChannel extends ChannelImplementor {
+    CompletableFuture<DeliveryResult> submit(String recipient, String subject, String content, String priority);
+}
+
+// Canal que pasa por su propio despachador lo que de verdad envía (el agrupador): un despachador con
+// carriles lo llama antes de encolar, así lo que el canal retiene no ocupa huecos de envío
+interface SelfQueuingChannel extends AsyncChannel {
+}
+
+class OutgoingMessage {
+    private final String recipient;
+    private final String subject;
+    private final String content;
+    private final String priority;
+
+    public OutgoingMessage(String recipient, String subject, String content, String priority) {
+        this.recipient = recipient;
+        this.subject = subject;
+        this.content = content;
+        this.priority = priority;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    // Mensajes con el mismo asunto, cuerpo y prioridad pueden salir en un único envío
+    String contentKey() {
+        return priority + '\u0000' + subject + '\u0000' + content;
+    }
+}
+
+class DeliveryResult {
+    private final String channel;
+    private final String recipient;
+    private final boolean delivered;
+    private final String detail;
+
+    public DeliveryResult(String channel, String recipient, boolean delivered, String detail) {
+        this.channel = channel;
+        this.recipient = recipient;
+        this.delivered = delivered;
+        this.detail = detail;
+    }
+
+    public static DeliveryResult delivered(String channel, String recipient) {
+        return new DeliveryResult(channel, recipient, true, "");
+    }
+
+    public static DeliveryResult failed(String channel, String recipient, String detail) {
+        return new DeliveryResult(channel, recipient, false, detail);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toString() {
+        if (delivered) {
+            return "Entregado por " + channel + " a " + recipient;
+        }
+        return "Falló el envío por " + channel + " a " + recipient + ": " + detail;
+    }
+}
+
+// Entrega de un lote: agrupa los mensajes de contenido idéntico y manda cada grupo al proveedor
+// en tandas de como mucho chunkSize destinatarios
+interface ChunkSender {
+    boolean[] send(List<String> recipients, OutgoingMessage template);
+}
+
+class ChunkedDelivery {
+
+    public static List<DeliveryResult> deliver(String channel, List<OutgoingMessage> messages,
+                                               int chunkSize, ChunkSender sender) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            groups.computeIfAbsent(messages.get(i).contentKey(), key -> new ArrayList<>()).add(i);
+        }
+
+        DeliveryResult[] results = new DeliveryResult[messages.size()];
+        for (List<Integer> group : groups.values()) {
+            for (int from = 0; from < group.size(); from += chunkSize) {
+                List<Integer> chunk = group.subList(from, Math.min(from + chunkSize, group.size()));
+                List<String> recipients = new ArrayList<>(chunk.size());
+                for (int index : chunk) {
+                    recipients.add(messages.get(index).getRecipient());
+                }
+
+                boolean[] accepted;
+                String error = "rechazado por el proveedor";
+                try {
+                    accepted = sender.send(recipients, messages.get(chunk.get(0)));
+                } catch (RuntimeException e) {
+                    accepted = new boolean[chunk.size()];
+                    error = String.valueOf(e);
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    results[chunk.get(i)] = accepted[i]
+                            ? DeliveryResult.delivered(channel, recipients.get(i))
+                            : DeliveryResult.failed(channel, recipients.get(i), error);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+}
+
+class EmailChannelImpl implements ChannelImplementor {
+    private EmailAdapter emailAdapter;
+    private int maxRecipients;
+
+    public EmailChannelImpl(EmailAdapter emailAdapter) {
+        this(emailAdapter, 500);
+    }
+
+    public EmailChannelImpl(EmailAdapter emailAdapter, int maxRecipients) {
+        this.emailAdapter = emailAdapter;
+        this.maxRecipients = maxRecipients;
+    }
+
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        System.out.println("Preparando envío por email...");
+        if (!emailAdapter.send(recipient, subject, content, priority)) {
+            return DeliveryResult.failed(getName(), recipient, "el servidor de correo no aceptó el mensaje");
+        }
+        return DeliveryResult.delivered(getName(), recipient);
+    }
+
+    // Los destinatarios de un mismo asunto y cuerpo van juntos en un solo correo
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        System.out.println("Preparando envío por email de " + messages.size() + " mensajes...");
+        return ChunkedDelivery.deliver(getName(), messages, maxRecipients, (recipients, template) -> {
+            boolean accepted = emailAdapter.sendToMany(recipients, template.getSubject(),
+                    template.getContent(), template.getPriority());
+            boolean[] results = new boolean[recipients.size()];
+            Arrays.fill(results, accepted);
+            return results;
+        });
+    }
+
+    @Override
+    public String getName() {
+        return "email";
+    }
+}
+
+class SMSChannelImpl implements ChannelImplementor {
+    private SMSAdapter smsAdapter;
+    private int chunkSize;
+
+    public SMSChannelImpl(SMSAdapter smsAdapter) {
+        this(smsAdapter, 100);
+    }
+
+    public SMSChannelImpl(SMSAdapter smsAdapter, int chunkSize) {
+        this.smsAdapter = smsAdapter;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        System.out.println("Preparando envío por SMS...");
+        String fullMessage = subject + ": " + content;
+        if (!smsAdapter.sendSMS(recipient, fullMessage, priority)) {
+            return DeliveryResult.failed(getName(), recipient, "el proveedor de SMS rechazó el mensaje");
+        }
+        return DeliveryResult.delivered(getName(), recipient);
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        System.out.println("Preparando envío por SMS de " + messages.size() + " mensajes...");
+        return ChunkedDelivery.deliver(getName(), messages, chunkSize, (recipients, template) ->
+                smsAdapter.sendSMSBatch(recipients, template.getSubject() + ": " + template.getContent(),
+                        template.getPriority()));
+    }
+
+    @Override
+    public String getName() {
+        return "sms";
+    }
+}
+
+class SlackChannelImpl implements ChannelImplementor {
+    private SlackAdapter slackAdapter;
+    private int chunkSize;
+
+    public SlackChannelImpl(SlackAdapter slackAdapter) {
+        this(slackAdapter, 50);
+    }
+
+    public SlackChannelImpl(SlackAdapter slackAdapter, int chunkSize) {
+        this.slackAdapter = slackAdapter;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        System.out.println("Preparando envío por Slack...");
+        if (!slackAdapter.postMessage(recipient, subject, content, priority)) {
+            return DeliveryResult.failed(getName(), recipient, "Slack no publicó el mensaje");
+        }
+        return DeliveryResult.delivered(getName(), recipient);
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        System.out.println("Preparando envío por Slack de " + messages.size() + " mensajes...");
+        return ChunkedDelivery.deliver(getName(), messages, chunkSize, (channels, template) ->
+                slackAdapter.postMessages(channels, template.getSubject(), template.getContent(),
+                        template.getPriority()));
+    }
+
+    @Override
+    public String getName() {
+        return "slack";
+    }
+}
+
+// Crea los hilos de envío: virtuales si la JVM los tiene (Java 21+), de plataforma si no
+class DispatchThreads {
+
+    public static ExecutorService newExecutor(String prefix, int platformThreads) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(platformThreads, platformFactory(prefix));
+        }
+    }
+
+    public static ThreadFactory platformFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
+
+// Ejecuta los envíos fuera del hilo que llama, con un ejecutor por canal para que un proveedor lento
+// no retrase a los demás. Con hilos virtuales cada envío tiene su propio hilo y puede haber miles en vuelo
+class ChannelDispatcher {
+    private static final ChannelDispatcher DEFAULT = new ChannelDispatcher(64);
+
+    private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+    private final int platformThreadsPerChannel;
+
+    public ChannelDispatcher(int platformThreadsPerChannel) {
+        this.platformThreadsPerChannel = platformThreadsPerChannel;
+    }
+
+    public static ChannelDispatcher getDefault() {
+        return DEFAULT;
+    }
+
+    public CompletableFuture<DeliveryResult> dispatch(ChannelImplementor channel, String recipient,
+                                                      String subject, String content, String priority) {
+        if (channel instanceof AsyncChannel) {
+            return ((AsyncChannel) channel).submit(recipient, subject, content, priority);
+        }
+        ExecutorService executor = executors.computeIfAbsent(channel.getName(),
+                name -> DispatchThreads.newExecutor("envio-" + name + "-", platformThreadsPerChannel));
+        return CompletableFuture.supplyAsync(() -> deliver(channel, recipient, subject, content, priority), executor);
+    }
+
+    // Variante con contrapresión para quien produce en masa (el lector de una campaña): espera a que
+    // haya sitio en lugar de recibir un rechazo. dispatch nunca bloquea
+    public CompletableFuture<DeliveryResult> offer(ChannelImplementor channel, String recipient, String subject,
+                                                   String content, String priority) throws InterruptedException {
+        awaitCapacity(priority);
+        return dispatch(channel, recipient, subject, content, priority);
+    }
+
+    // Espera a que quepa un envío de esa prioridad; sin colas acotadas siempre cabe
+    public void awaitCapacity(String priority) throws InterruptedException {
+    }
+
+    // Un proveedor que lanza una excepción cuenta como envío fallido, no como future roto
+    static DeliveryResult deliver(ChannelImplementor channel, String recipient,
+                                  String subject, String content, String priority) {
+        try {
+            return channel.sendMessage(recipient, subject, content, priority);
+        } catch (RuntimeException e) {
+            return DeliveryResult.failed(channel.getName(), recipient, String.valueOf(e));
+        }
+    }
+}
+
+// Tiempos de espera en cola de un carril: contadores y un histograma por potencias de dos
+class LaneStats {
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder overTarget = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    void record(long waitNanos, long targetNanos) {
+        dispatched.increment();
+        totalWaitNanos.add(waitNanos);
+        if (targetNanos > 0 && waitNanos > targetNanos) {
+            overTarget.increment();
+        }
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(waitNanos, 1)) - 1);
+    }
+
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    public long getOverTarget() {
+        return overTarget.sum();
+    }
+
+    void reject() {
+        rejected.increment();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = dispatched.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    // Cota superior del percentil: el límite de la potencia de dos donde cae
+    public double getWaitPercentileMillis(double quantile) {
+        long count = dispatched.sum();
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min((2L << i) - 1, maxWaitNanos.get()) / 1_000_000.0;
+            }
+        }
+        return getMaxWaitMillis();
+    }
+}
+
+// Despacho con un carril por prioridad. Un único hilo planificador reparte los huecos de envío
+// (como mucho maxInFlight a la vez) entre los carriles con round robin ponderado, así LOW avanza
+// aunque haya tráfico de las demás. HIGH tiene huecos reservados que el resto no puede ocupar y,
+// si su mensaje más antiguo supera el objetivo de latencia, pasa por delante sin esperar turno
+class PriorityDispatcher extends ChannelDispatcher {
+    static final String[] LANES = {"HIGH", "MEDIUM", "LOW"};
+    private static final int HIGH = 0;
+    private static final PriorityDispatcher DEFAULT = new PriorityDispatcher(64, 256, 32,
+            new int[] {8, 3, 1}, 100, 100_000);
+
+    private final int maxInFlight;
+    private final int reservedForHigh;
+    private final int[] weights;
+    private final long highTargetNanos;
+    private final int laneCapacity;
+    private final List<ArrayDeque<QueuedMessage>> lanes = new ArrayList<>();
+    private final LaneStats[] stats = new LaneStats[LANES.length];
+    private final int[] credits = new int[LANES.length];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int inFlight;
+
+    public PriorityDispatcher(int platformThreadsPerChannel, int maxInFlight, int reservedForHigh,
+                              int[] weights, long highTargetMillis, int laneCapacity) {
+        super(platformThreadsPerChannel);
+        this.maxInFlight = maxInFlight;
+        this.reservedForHigh = reservedForHigh;
+        this.weights = weights.clone();
+        this.highTargetNanos = TimeUnit.MILLISECONDS.toNanos(highTargetMillis);
+        this.laneCapacity = laneCapacity;
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new ArrayDeque<>());
+            stats[i] = new LaneStats();
+        }
+        Thread scheduler = DispatchThreads.platformFactory("planificador-").newThread(this::schedule);
+        scheduler.start();
+    }
+
+    public static PriorityDispatcher getDefault() {
+        return DEFAULT;
+    }
+
+    static int laneOf(String priority) {
+        switch (priority) {
+            case "HIGH": return 0;
+            case "LOW": return 2;
+            default: return 1;
+        }
+    }
+
+    // No bloquea nunca: se llama también desde hilos de callbacks y temporizadores. Si el carril está
+    // lleno el envío se rechaza como fallido; quien produce en masa usa offer, que espera sitio.
+    // HIGH no tiene límite para que una alerta nunca se rechace
+    @Override
+    public CompletableFuture<DeliveryResult> dispatch(ChannelImplementor channel, String recipient,
+                                                      String subject, String content, String priority) {
+        if (channel instanceof SelfQueuingChannel) {
+            return ((SelfQueuingChannel) channel).submit(recipient, subject, content, priority);
+        }
+        int lane = laneOf(priority);
+        QueuedMessage message = new QueuedMessage(channel, new OutgoingMessage(recipient, subject, content, priority));
+        lock.lock();
+        try {
+            if (lane != HIGH && lanes.get(lane).size() >= laneCapacity) {
+                stats[lane].reject();
+                return CompletableFuture.completedFuture(DeliveryResult.failed(channel.getName(), recipient,
+                        "carril " + LANES[lane] + " lleno"));
+            }
+            lanes.get(lane).addLast(message);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return message.future;
+    }
+
+    // Espera sitio y encola bajo el mismo candado, así dos productores no se pisan el último hueco
+    @Override
+    public CompletableFuture<DeliveryResult> offer(ChannelImplementor channel, String recipient, String subject,
+                                                   String content, String priority) throws InterruptedException {
+        if (channel instanceof SelfQueuingChannel) {
+            return super.offer(channel, recipient, subject, content, priority);
+        }
+        int lane = laneOf(priority);
+        QueuedMessage message = new QueuedMessage(channel, new OutgoingMessage(recipient, subject, content, priority));
+        lock.lockInterruptibly();
+        try {
+            while (lane != HIGH && lanes.get(lane).size() >= laneCapacity) {
+                notFull.await();
+            }
+            lanes.get(lane).addLast(message);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return message.future;
+    }
+
+    @Override
+    public void awaitCapacity(String priority) throws InterruptedException {
+        int lane = laneOf(priority);
+        lock.lockInterruptibly();
+        try {
+            while (lane != HIGH && lanes.get(lane).size() >= laneCapacity) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule() {
+        while (true) {
+            QueuedMessage message;
+            int lane;
+            lock.lock();
+            try {
+                while ((lane = nextLane()) < 0) {
+                    changed.awaitUninterruptibly();
+                }
+                message = lanes.get(lane).pollFirst();
+                inFlight++;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            stats[lane].record(System.nanoTime() - message.enqueuedNanos, lane == HIGH ? highTargetNanos : 0);
+            OutgoingMessage outgoing = message.message;
+            CompletableFuture<DeliveryResult> sent;
+            try {
+                sent = super.dispatch(message.channel, outgoing.getRecipient(), outgoing.getSubject(),
+                        outgoing.getContent(), outgoing.getPriority());
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.completedFuture(DeliveryResult.failed(message.channel.getName(),
+                        outgoing.getRecipient(), String.valueOf(e)));
+            }
+            sent.whenComplete((result, error) -> {
+                lock.lock();
+                try {
+                    inFlight--;
+                    changed.signal();
+                } finally {
+                    lock.unlock();
+                }
+                if (error != null) {
+                    message.future.complete(DeliveryResult.failed(message.channel.getName(),
+                            outgoing.getRecipient(), String.valueOf(error)));
+                } else {
+                    message.future.complete(result);
+                }
+            });
+        }
+    }
+
+    // Se llama con el candado tomado; -1 si no hay nada que se pueda despachar ahora
+    private int nextLane() {
+        if (inFlight >= maxInFlight) {
+            return -1;
+        }
+        ArrayDeque<QueuedMessage> high = lanes.get(HIGH);
+        if (!high.isEmpty() && System.nanoTime() - high.peekFirst().enqueuedNanos >= highTargetNanos) {
+            return HIGH;
+        }
+        boolean othersAllowed = inFlight < maxInFlight - reservedForHigh;
+
+        // Round robin ponderado suave entre los carriles que pueden despachar
+        int best = -1;
+        int total = 0;
+        for (int lane = 0; lane < LANES.length; lane++) {
+            if (lanes.get(lane).isEmpty() || (lane != HIGH && !othersAllowed)) {
+                continue;
+            }
+            credits[lane] += weights[lane];
+            total += weights[lane];
+            if (best < 0 || credits[lane] > credits[best]) {
+                best = lane;
+            }
+        }
+        if (best >= 0) {
+            credits[best] -= total;
+        }
+        return best;
+    }
+
+    public LaneStats getStats(String priority) {
+        return stats[laneOf(priority)];
+    }
+
+    public int getQueued(String priority) {
+        lock.lock();
+        try {
+            return lanes.get(laneOf(priority)).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void printStats() {
+        for (String lane : LANES) {
+            LaneStats laneStats = getStats(lane);
+            System.out.printf("%-6s %d despachados, en cola %d, rechazados %d, espera media %.2f ms, p99 <= %.2f ms,"
+                            + " máx %.2f ms%s%n",
+                    lane, laneStats.getDispatched(), getQueued(lane), laneStats.getRejected(),
+                    laneStats.getAverageWaitMillis(),
+                    laneStats.getWaitPercentileMillis(0.99), laneStats.getMaxWaitMillis(),
+                    lane.equals("HIGH") ? ", sobre el objetivo " + laneStats.getOverTarget() : "");
+        }
+    }
+
+    private static class QueuedMessage {
+        final ChannelImplementor channel;
+        final OutgoingMessage message;
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<DeliveryResult> future = new CompletableFuture<>();
+
+        QueuedMessage(ChannelImplementor channel, OutgoingMessage message) {
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+}
+
+// Acumula los envíos individuales y los entrega con sendBatch del canal real cuando se juntan
+// maxBatchSize mensajes o pasa windowMillis desde el primero, lo que ocurra antes
+class BatchingChannel implements AsyncChannel {
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("lotes-temporizador-"));
+
+    private final ChannelImplementor delegate;
+    private final int maxBatchSize;
+    private final long windowMillis;
+    private final ExecutorService flusher;
+    private List<OutgoingMessage> messages = new ArrayList<>();
+    private List<CompletableFuture<DeliveryResult>> futures = new ArrayList<>();
+    private long generation;
+
+    public BatchingChannel(ChannelImplementor delegate, int maxBatchSize, long windowMillis) {
+        this.delegate = delegate;
+        this.maxBatchSize = maxBatchSize;
+        this.windowMillis = windowMillis;
+        this.flusher = DispatchThreads.newExecutor("lotes-" + delegate.getName() + "-", 4);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> submit(String recipient, String subject, String content, String priority) {
+        CompletableFuture<DeliveryResult> future = new CompletableFuture<>();
+        Runnable flush = null;
+        synchronized (this) {
+            messages.add(new OutgoingMessage(recipient, subject, content, priority));
+            futures.add(future);
+            if (messages.size() >= maxBatchSize) {
+                flush = takeBatch();
+            } else if (messages.size() == 1) {
+                long scheduled = generation;
+                TIMER.schedule(() -> flushIfPending(scheduled), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flush != null) {
+            flusher.execute(flush);
+        }
+        return future;
+    }
+
+    // Entrega lo acumulado sin esperar a que venza la ventana
+    public void flush() {
+        Runnable flush;
+        synchronized (this) {
+            if (messages.isEmpty()) {
+                return;
+            }
+            flush = takeBatch();
+        }
+        flusher.execute(flush);
+    }
+
+    // El temporizador solo vacía el lote que lo programó; si ya salió por tamaño no hace nada
+    private void flushIfPending(long scheduled) {
+        Runnable flush;
+        synchronized (this) {
+            if (generation != scheduled || messages.isEmpty()) {
+                return;
+            }
+            flush = takeBatch();
+        }
+        flusher.execute(flush);
+    }
+
+    private Runnable takeBatch() {
+        List<OutgoingMessage> batch = messages;
+        List<CompletableFuture<DeliveryResult>> waiting = futures;
+        messages = new ArrayList<>();
+        futures = new ArrayList<>();
+        generation++;
+        return () -> deliver(batch, waiting);
+    }
+
+    private void deliver(List<OutgoingMessage> batch, List<CompletableFuture<DeliveryResult>> waiting) {
+        try {
+            List<DeliveryResult> results = delegate.sendBatch(batch);
+            for (int i = 0; i < waiting.size(); i++) {
+                waiting.get(i).complete(results.get(i));
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < waiting.size(); i++) {
+                waiting.get(i).complete(DeliveryResult.failed(getName(), batch.get(i).getRecipient(), String.valueOf(e)));
+            }
+        }
+    }
+
+    // Quien llame directamente espera a que salga el lote que contiene su mensaje
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        return submit(recipient, subject, content, priority).join();
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> batch) {
+        return delegate.sendBatch(batch);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+}
+
+class CoalesceKey {
+    private final String channel;
+    private final String recipient;
+    private final String subject;
+    private final int hash;
+
+    public CoalesceKey(String channel, String recipient, String subject) {
+        this.channel = channel;
+        this.recipient = recipient;
+        this.subject = subject;
+        this.hash = (channel.hashCode() * 31 + recipient.hashCode()) * 31 + subject.hashCode();
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CoalesceKey)) {
+            return false;
+        }
+        CoalesceKey other = (CoalesceKey) o;
+        return hash == other.hash && recipient.equals(other.recipient) && subject.equals(other.subject)
+                && channel.equals(other.channel);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
+
+// Agrupa las notificaciones repetidas (mismo canal del registro, destinatario y asunto). La primera
+// sale en el acto y abre una ventana; las que llegan mientras está abierta solo suman a un contador y
+// al cerrarla se manda un único resumen con el último contenido y cuántas se agruparon. Las repetidas
+// de una ventana comparten el future del resumen y se completan con su resultado real, así nadie da
+// por entregado (ni el outbox pone el ACK) algo que aún no salió; cuestan lo mismo sean 2 o 2000.
+// No ocupan huecos de envío porque el agrupador va delante de los carriles (SelfQueuingChannel).
+// El índice está acotado a maxKeys ventanas abiertas; si se llena, lo nuevo pasa sin agrupar
+class NotificationCoalescer {
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("agrupador-"));
+
+    private final ConcurrentHashMap<CoalesceKey, Window> windows = new ConcurrentHashMap<>();
+    private final long windowMillis;
+    private final int maxKeys;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder failedSummaries = new LongAdder();
+
+    public NotificationCoalescer(long windowMillis, int maxKeys) {
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys;
+    }
+
+    // channelKey es la clave del canal en el registro: varios canales comparten nombre (los de email)
+    // y una repetida no debe salir por el canal de la ventana que abrió otro
+    public CompletableFuture<DeliveryResult> submit(String channelKey, ChannelImplementor channel,
+                                                    ChannelDispatcher dispatcher, String recipient,
+                                                    String subject, String content, String priority) {
+        CoalesceKey key = new CoalesceKey(channelKey, recipient, subject);
+        while (true) {
+            Window window = windows.get(key);
+            if (window == null) {
+                if (windows.size() >= maxKeys) {
+                    bypassed.increment();
+                    return dispatcher.dispatch(channel, recipient, subject, content, priority);
+                }
+                Window created = new Window(channel, dispatcher, priority);
+                if (windows.putIfAbsent(key, created) == null) {
+                    opened.increment();
+                    TIMER.schedule(() -> close(key, created), windowMillis, TimeUnit.MILLISECONDS);
+                    return dispatcher.dispatch(channel, recipient, subject, content, priority);
+                }
+            } else if (window.add(content)) {
+                merged.increment();
+                return window.summary;
+            } else {
+                // Se está cerrando: la repetida abre la siguiente ventana
+                windows.remove(key, window);
+            }
+        }
+    }
+
+    private void close(CoalesceKey key, Window window) {
+        int repeated = window.close();
+        windows.remove(key, window);
+        if (repeated == 0) {
+            return;
+        }
+        String content = window.lastContent + " (" + repeated + (repeated == 1 ? " repetición" : " repeticiones")
+                + " más en " + windowMillis / 1000.0 + " s)";
+        window.dispatcher.dispatch(window.channel, key.getRecipient(), key.getSubject(), content, window.priority)
+                .whenComplete((result, error) -> {
+                    if (result == null || !result.isDelivered()) {
+                        failedSummaries.increment();
+                    }
+                    window.summary.complete(result != null ? result
+                            : DeliveryResult.failed(window.channel.getName(), key.getRecipient(), String.valueOf(error)));
+                });
+    }
+
+    public int getOpenWindows() {
+        return windows.size();
+    }
+
+    public String describe() {
+        return "Agrupador (" + windowMillis + " ms): " + opened.sum() + " ventanas, " + merged.sum()
+                + " repetidas agrupadas, " + bypassed.sum() + " sin agrupar por límite, "
+                + failedSummaries.sum() + " resúmenes fallidos, " + windows.size() + " abiertas";
+    }
+
+    private static class Window {
+        final ChannelImplementor channel;
+        final ChannelDispatcher dispatcher;
+        final String priority;
+        final CompletableFuture<DeliveryResult> summary = new CompletableFuture<>();
+        final AtomicInteger repeated = new AtomicInteger();
+        volatile String lastContent;
+
+        Window(ChannelImplementor channel, ChannelDispatcher dispatcher, String priority) {
+            this.channel = channel;
+            this.dispatcher = dispatcher;
+            this.priority = priority;
+        }
+
+        boolean add(String content) {
+            lastContent = content;
+            int current;
+            do {
+                current = repeated.get();
+                if (current < 0) {
+                    return false;
+                }
+            } while (!repeated.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        // Después de esto add devuelve false
+        int close() {
+            return repeated.getAndSet(-1);
+        }
+    }
+}
+
+// Pasa cada envío por el agrupador antes del canal real. Los lotes no se agrupan: las campañas
+// ya traen un mensaje por destinatario
+class CoalescingChannel implements SelfQueuingChannel {
+    private final String key;
+    private final ChannelImplementor delegate;
+    private final NotificationCoalescer coalescer;
+    private final ChannelDispatcher dispatcher;
+
+    public CoalescingChannel(String key, ChannelImplementor delegate, NotificationCoalescer coalescer,
+                             ChannelDispatcher dispatcher) {
+        this.key = key;
+        this.delegate = delegate;
+        this.coalescer = coalescer;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> submit(String recipient, String subject, String content, String priority) {
+        return coalescer.submit(key, delegate, dispatcher, recipient, subject, content, priority);
+    }
+
+    // Una repetida espera hasta que sale el resumen de su ventana
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        return submit(recipient, subject, content, priority).join();
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        return delegate.sendBatch(messages);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+}
+
+abstract class Notification {
+    protected ChannelImplementor channel;
+    protected ChannelDispatcher dispatcher;
+
+    // Por defecto los envíos pasan por los carriles de prioridad compartidos
+    public Notification(ChannelImplementor channel) {
+        this(channel, PriorityDispatcher.getDefault());
+    }
+
+    public Notification(ChannelImplementor channel, ChannelDispatcher dispatcher) {
+        this.channel = channel;
+        this.dispatcher = dispatcher;
+    }
+
+    // No bloquea: el future se completa cuando el proveedor responde
+    public abstract CompletableFuture<DeliveryResult> send(String recipient, String subject, String content);
+}
+
+class UrgentNotification extends Notification {
+    public UrgentNotification(ChannelImplementor channel) {
+        super(channel);
+    }
+
+    public UrgentNotification(ChannelImplementor channel, ChannelDispatcher dispatcher) {
+        super(channel, dispatcher);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> send(String recipient, String subject, String content) {
+        System.out.println("NOTIFICACIÓN URGENTE: Enviando notificación urgente...");
+        String urgentSubject = "URGENTE: " + subject;
+        String urgentContent = "ATENCIÓN INMEDIATA REQUERIDA:\n" + content;
+        return dispatcher.dispatch(channel, recipient, urgentSubject, urgentContent, "HIGH");
+    }
+}
+
+class InformativeNotification extends Notification {
+    public InformativeNotification(ChannelImplementor channel) {
+        super(channel);
+    }
+
+    public InformativeNotification(ChannelImplementor channel, ChannelDispatcher dispatcher) {
+        super(channel, dispatcher);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> send(String recipient, String subject, String content) {
+        System.out.println("NOTIFICACIÓN INFORMATIVA: Enviando notificación informativa...");
+        String informativeSubject = "Info: " + subject;
+        return dispatcher.dispatch(channel, recipient, informativeSubject, content, "MEDIUM");
+    }
+}
+
+class MarketingNotification extends Notification {
+    static final String FOOTER = "\n\nGracias por ser parte de nuestra comunidad!";
+
+    public MarketingNotification(ChannelImplementor channel) {
+        super(channel);
+    }
+
+    public MarketingNotification(ChannelImplementor channel, ChannelDispatcher dispatcher) {
+        super(channel, dispatcher);
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> send(String recipient, String subject, String content) {
+        System.out.println("NOTIFICACIÓN DE MARKETING: Enviando notificación de marketing...");
+        String marketingSubject = subject;
+        String marketingContent = content + FOOTER;
+        return dispatcher.dispatch(channel, recipient, marketingSubject, marketingContent, "LOW");
+    }
+
+    // Campaña a todos los destinatarios de un archivo CSV con cabecera; las plantillas pueden usar
+    // {columna} con cualquier columna de la cabecera
+    public CampaignReport sendCampaign(Path recipients, String subjectTemplate, String contentTemplate,
+                                       int parallelism, int chunkSize, long progressMillis)
+            throws IOException, InterruptedException {
+        System.out.println("NOTIFICACIÓN DE MARKETING: Enviando campaña a los destinatarios de " + recipients + "...");
+        MarketingCampaign campaign = new MarketingCampaign(channel, dispatcher, subjectTemplate, contentTemplate,
+                parallelism, chunkSize);
+        return campaign.run(recipients, progressMillis);
+    }
+}
+
+class OutboxEntry {
+    private final long sequence;
+    private final String channelKey;
+    private final OutgoingMessage message;
+
+    public OutboxEntry(long sequence, String channelKey, OutgoingMessage message) {
+        this.sequence = sequence;
+        this.channelKey = channelKey;
+        this.message = message;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getChannelKey() {
+        return channelKey;
+    }
+
+    public OutgoingMessage getMessage() {
+        return message;
+    }
+}
+
+// Registro de solo anexado repartido en segmentos mapeados en memoria. Cada registro lleva longitud,
+// CRC32, tipo y secuencia; al abrir se lee hasta el primer registro vacío o corrupto (escritura a medias).
+// Escribir es copiar bytes al mapa bajo un candado corto; un hilo aparte hace el force() y confirma de
+// una vez todo lo escrito desde el anterior (group commit). Los segmentos se borran en orden cuando
+// todas sus entradas tienen su ACK, así un ACK nunca se pierde antes que la entrada a la que se refiere
+class OutboxLog implements Closeable {
+    private static final byte ENTRY = 1;
+    private static final byte ACK = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 1 + 8;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ConcurrentSkipListMap<Long, Segment> segmentsByFirstSequence = new ConcurrentSkipListMap<>();
+    private final List<Segment> dirty = new ArrayList<>();
+    private final ConcurrentLinkedQueue<DurabilityWaiter> waiters = new ConcurrentLinkedQueue<>();
+    private final List<OutboxEntry> recovered;
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+    private final long maxFlushDelayNanos;
+    private Segment current;
+    private long nextSequence;
+    private long written;
+    private volatile long durable;
+    private volatile boolean flusherIdle;
+    private volatile boolean closed;
+
+    private OutboxLog(Path directory, int segmentBytes, long maxFlushDelayMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushDelayMillis);
+        this.recovered = recover();
+        startSegment();
+        deleteAckedPrefix();
+        this.flusher = DispatchThreads.platformFactory("outbox-").newThread(this::flushLoop);
+        flusher.start();
+    }
+
+    public static OutboxLog open(Path directory, int segmentBytes, long maxFlushDelayMillis) throws IOException {
+        Files.createDirectories(directory);
+        return new OutboxLog(directory, segmentBytes, maxFlushDelayMillis);
+    }
+
+    // Entradas que quedaron sin ACK en la ejecución anterior, en el orden en que se guardaron
+    public List<OutboxEntry> getRecovered() {
+        return recovered;
+    }
+
+    private List<OutboxEntry> recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "outbox-*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+
+        Map<Long, OutboxEntry> pending = new LinkedHashMap<>();
+        Map<Long, Segment> owners = new HashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = Segment.map(file, Long.parseLong(name.substring(7, name.length() - 4)), segmentBytes);
+            segment.sealed = true;
+            segments.addLast(segment);
+
+            ByteBuffer map = segment.map;
+            int position = 0;
+            while (position + HEADER_BYTES <= map.capacity()) {
+                int length = map.getInt(position);
+                if (length < HEADER_BYTES || position + length > map.capacity()
+                        || map.getInt(position + 4) != checksum(map, position, length)) {
+                    break;
+                }
+                byte type = map.get(position + 8);
+                long sequence = map.getLong(position + 9);
+                if (type == ENTRY) {
+                    ByteBuffer record = map.duplicate();
+                    record.position(position + HEADER_BYTES).limit(position + length);
+                    String channelKey = readString(record);
+                    OutgoingMessage message = new OutgoingMessage(readString(record), readString(record),
+                            readString(record), readString(record));
+                    pending.put(sequence, new OutboxEntry(sequence, channelKey, message));
+                    owners.put(sequence, segment);
+                    segment.live++;
+                    if (segment.firstSequence < 0) {
+                        segment.firstSequence = sequence;
+                        segmentsByFirstSequence.put(sequence, segment);
+                    }
+                } else if (pending.remove(sequence) != null) {
+                    owners.remove(sequence).live--;
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                position += length;
+            }
+            segment.position = position;
+        }
+        return List.copyOf(pending.values());
+    }
+
+    private void startSegment() throws IOException {
+        long number = segments.isEmpty() ? 1 : segments.peekLast().number + 1;
+        Path file = directory.resolve(String.format("outbox-%012d.log", number));
+        current = Segment.map(file, number, segmentBytes);
+        segments.addLast(current);
+    }
+
+    // El future se completa cuando la entrada ya está en disco
+    public CompletableFuture<Long> append(String channelKey, OutgoingMessage message) {
+        byte[][] fields = {
+                utf8(channelKey), utf8(message.getRecipient()), utf8(message.getSubject()),
+                utf8(message.getContent()), utf8(message.getPriority())
+        };
+        int length = HEADER_BYTES;
+        for (byte[] field : fields) {
+            length += 4 + field.length;
+        }
+        if (length > segmentBytes) {
+            throw new IllegalArgumentException("Mensaje demasiado grande para el outbox: " + length + " bytes");
+        }
+
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            ensureOpen();
+            // La secuencia se toma después de reservar: si la reserva abre un segmento nuevo, la
+            // entrada es la primera de ese segmento y es la que lo indexa para los ACK
+            int position = reserve(length);
+            long sequence = nextSequence++;
+            if (current.firstSequence < 0) {
+                current.firstSequence = sequence;
+                segmentsByFirstSequence.put(sequence, current);
+            }
+            ByteBuffer map = current.map;
+            map.position(position + HEADER_BYTES);
+            for (byte[] field : fields) {
+                map.putInt(field.length).put(field);
+            }
+            finishRecord(position, length, ENTRY, sequence);
+            current.live++;
+            waiters.add(new DurabilityWaiter(written, sequence, future));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        wakeFlusher();
+        return future;
+    }
+
+    // El ACK no espera al disco: si se pierde, la entrada se reenvía al reanudar (al menos una vez)
+    public void acknowledge(long sequence) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            int position = reserve(HEADER_BYTES);
+            finishRecord(position, HEADER_BYTES, ACK, sequence);
+            Map.Entry<Long, Segment> owner = segmentsByFirstSequence.floorEntry(sequence);
+            if (owner != null) {
+                owner.getValue().live--;
+            }
+            deleteAckedPrefix();
+        } catch (IOException e) {
+            System.out.println("No se pudo registrar el ACK " + sequence + " en el outbox: " + e);
+        } finally {
+            lock.unlock();
+        }
+        wakeFlusher();
+    }
+
+    private int reserve(int length) throws IOException {
+        if (current.position + length > segmentBytes) {
+            current.sealed = true;
+            startSegment();
+        }
+        int position = current.position;
+        current.position += length;
+        if (!current.dirty) {
+            current.dirty = true;
+            dirty.add(current);
+        }
+        return position;
+    }
+
+    // La longitud se escribe al final: hasta entonces el registro se lee como vacío
+    private void finishRecord(int position, int length, byte type, long sequence) {
+        ByteBuffer map = current.map;
+        map.put(position + 8, type);
+        map.putLong(position + 9, sequence);
+        map.putInt(position + 4, checksum(map, position, length));
+        map.putInt(position, length);
+        written++;
+    }
+
+    private int checksum(ByteBuffer map, int position, int length) {
+        ByteBuffer record = map.duplicate();
+        record.position(position + 8).limit(position + length);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private void deleteAckedPrefix() {
+        while (segments.size() > 1 && segments.peekFirst().sealed && segments.peekFirst().live == 0) {
+            Segment segment = segments.pollFirst();
+            segmentsByFirstSequence.remove(segment.firstSequence, segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.out.println("No se pudo borrar el segmento " + segment.path + ": " + e);
+            }
+        }
+    }
+
+    private void wakeFlusher() {
+        if (flusherIdle) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            List<Segment> toForce;
+            lock.lock();
+            try {
+                target = written;
+                toForce = new ArrayList<>(dirty);
+                for (Segment segment : toForce) {
+                    segment.dirty = false;
+                }
+                dirty.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            if (toForce.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                flusherIdle = true;
+                LockSupport.parkNanos(maxFlushDelayNanos);
+                flusherIdle = false;
+                continue;
+            }
+            for (Segment segment : toForce) {
+                segment.map.force();
+            }
+            durable = target;
+            DurabilityWaiter waiter;
+            while ((waiter = waiters.peek()) != null && waiter.record <= target) {
+                waiters.poll();
+                waiter.future.complete(waiter.sequence);
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Outbox cerrado");
+        }
+    }
+
+    public long getDurableRecords() {
+        return durable;
+    }
+
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Espera a que lo ya escrito llegue a disco
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        final MappedByteBuffer map;
+        long firstSequence = -1;
+        int position;
+        int live;
+        boolean sealed;
+        boolean dirty;
+
+        private Segment(long number, Path path, MappedByteBuffer map) {
+            this.number = number;
+            this.path = path;
+            this.map = map;
+        }
+
+        static Segment map(Path path, long number, int bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = Math.max(bytes, channel.size());
+                return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+
+    private static class DurabilityWaiter {
+        final long record;
+        final long sequence;
+        final CompletableFuture<Long> future;
+
+        DurabilityWaiter(long record, long sequence, CompletableFuture<Long> future) {
+            this.record = record;
+            this.sequence = sequence;
+            this.future = future;
+        }
+    }
+}
+
+// Guarda cada notificación en el outbox antes de enviarla y le pone el ACK solo cuando el proveedor
+// la aceptó. Los fallos se reintentan con backoff exponencial y jitter (la mitad fija, la otra mitad
+// al azar) para que los reintentos de muchos mensajes no lleguen todos a la vez. Ni el hilo que hace el
+// force() del outbox ni el del temporizador de reintentos llaman al despachador: le pasan el envío a
+// HANDOFF, así un despachador lento no frena el group commit ni los demás reintentos
+class OutboxDispatcher extends ChannelDispatcher {
+    private static final ScheduledExecutorService RETRIES =
+            Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("outbox-reintentos-"));
+    private static final ExecutorService HANDOFF = DispatchThreads.newExecutor("outbox-entrega-", 8);
+
+    private final OutboxLog log;
+    private final ChannelRegistry registry;
+    private final ChannelDispatcher delivery;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxAttempts;
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public OutboxDispatcher(OutboxLog log, ChannelRegistry registry, ChannelDispatcher delivery,
+                            long baseBackoffMillis, long maxBackoffMillis, int maxAttempts) {
+        super(1);
+        this.log = log;
+        this.registry = registry;
+        this.delivery = delivery;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    // Solo los canales del registro se pueden volver a abrir al reanudar; el resto sale sin persistir
+    @Override
+    public CompletableFuture<DeliveryResult> dispatch(ChannelImplementor channel, String recipient,
+                                                      String subject, String content, String priority) {
+        String key = registry.keyOf(channel);
+        if (key == null) {
+            return delivery.dispatch(channel, recipient, subject, content, priority);
+        }
+        OutgoingMessage message = new OutgoingMessage(recipient, subject, content, priority);
+        CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+        log.append(key, message).whenCompleteAsync((sequence, error) -> {
+            if (error != null) {
+                result.complete(DeliveryResult.failed(channel.getName(), recipient,
+                        "no se pudo guardar en el outbox: " + error));
+            } else {
+                attempt(new OutboxEntry(sequence, key, message), channel, 1, result);
+            }
+        }, HANDOFF);
+        return result;
+    }
+
+    // El sitio lo pone el despachador que entrega; la entrada se guarda antes de ocuparlo
+    @Override
+    public void awaitCapacity(String priority) throws InterruptedException {
+        delivery.awaitCapacity(priority);
+    }
+
+    // Reenvía lo que quedó pendiente de la ejecución anterior; devuelve cuántas entradas había
+    public int replayPending() {
+        List<OutboxEntry> pending = log.getRecovered();
+        for (OutboxEntry entry : pending) {
+            ChannelImplementor channel = registry.contains(entry.getChannelKey())
+                    ? registry.channel(entry.getChannelKey()) : null;
+            if (channel == null) {
+                System.out.println("Canal " + entry.getChannelKey() + " ya no existe; se descarta la entrada "
+                        + entry.getSequence());
+                log.acknowledge(entry.getSequence());
+                continue;
+            }
+            attempt(entry, channel, 1, new CompletableFuture<>());
+        }
+        return pending.size();
+    }
+
+    private void attempt(OutboxEntry entry, ChannelImplementor channel, int attempt,
+                         CompletableFuture<DeliveryResult> result) {
+        OutgoingMessage message = entry.getMessage();
+        delivery.dispatch(channel, message.getRecipient(), message.getSubject(), message.getContent(),
+                message.getPriority()).whenComplete((delivered, error) -> {
+            DeliveryResult outcome = delivered != null ? delivered
+                    : DeliveryResult.failed(channel.getName(), message.getRecipient(), String.valueOf(error));
+            if (outcome.isDelivered() || attempt >= maxAttempts) {
+                if (!outcome.isDelivered()) {
+                    abandoned.increment();
+                    System.out.println("Outbox: se abandona la entrada " + entry.getSequence() + " tras "
+                            + attempt + " intentos: " + outcome.getDetail());
+                }
+                log.acknowledge(entry.getSequence());
+                result.complete(outcome);
+                return;
+            }
+            retries.increment();
+            RETRIES.schedule(() -> HANDOFF.execute(() -> attempt(entry, channel, attempt + 1, result)),
+                    backoffMillis(attempt), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 30));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    public void printStats() {
+        System.out.println("Outbox: " + retries.sum() + " reintentos, " + abandoned.sum() + " abandonados, "
+                + log.getSegmentCount() + " segmentos en disco");
+    }
+}
+
+// Plantilla compilada una sola vez: texto fijo intercalado con índices de columna. Los {columna} se
+// resuelven al compilar, y al renderizar se copian los rangos de la línea leída directamente al buffer
+class MessageTemplate {
+    private final String[] literals;
+    private final int[] columns;
+
+    private MessageTemplate(String[] literals, int[] columns) {
+        this.literals = literals;
+        this.columns = columns;
+    }
+
+    // {{ y }} se escriben como llaves literales
+    public static MessageTemplate compile(String template, List<String> columnNames) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if ((c == '{' || c == '}') && i + 1 < template.length() && template.charAt(i + 1) == c) {
+                literal.append(c);
+                i += 2;
+            } else if (c == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Marcador sin cerrar en la plantilla: " + template.substring(i));
+                }
+                String name = template.substring(i + 1, end).trim();
+                int column = columnNames.indexOf(name);
+                if (column < 0) {
+                    throw new IllegalArgumentException("Marcador {" + name + "} sin columna en el archivo de destinatarios "
+                            + columnNames);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                columns.add(column);
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString());
+
+        int[] columnIndexes = new int[columns.size()];
+        for (int j = 0; j < columnIndexes.length; j++) {
+            columnIndexes[j] = columns.get(j);
+        }
+        return new MessageTemplate(literals.toArray(new String[0]), columnIndexes);
+    }
+
+    public void renderTo(StringBuilder out, RecipientRow row) {
+        out.append(literals[0]);
+        for (int i = 0; i < columns.length; i++) {
+            row.appendField(out, columns[i]);
+            out.append(literals[i + 1]);
+        }
+    }
+}
+
+// Una línea del archivo de destinatarios partida por comas sin copiar los campos: solo se guardan
+// sus posiciones, y la misma instancia se reutiliza para todas las líneas de un hilo
+class RecipientRow {
+    private final int[] starts;
+    private final int[] ends;
+    // Solo los campos entre comillas con comillas dobladas ("") necesitan una copia sin escapar
+    private final String[] unescaped;
+    private String line;
+
+    public RecipientRow(int columns) {
+        this.starts = new int[columns];
+        this.ends = new int[columns];
+        this.unescaped = new String[columns];
+    }
+
+    // Los nombres de columna admiten las mismas comillas que las filas
+    public static List<String> parseHeader(String header) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < header.length() && header.charAt(i + 1) == '"') {
+                    column.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                columns.add(column.toString().trim());
+                column.setLength(0);
+            } else {
+                column.append(c);
+            }
+        }
+        columns.add(column.toString().trim());
+        return columns;
+    }
+
+    // false si la línea no tiene todas las columnas o deja unas comillas sin cerrar. Un campo entre
+    // comillas puede contener comas; la última columna sin comillas se queda con el resto de la línea
+    public boolean parse(String line) {
+        this.line = line;
+        int length = line.length();
+        int start = 0;
+        for (int column = 0; column < starts.length; column++) {
+            boolean last = column == starts.length - 1;
+            unescaped[column] = null;
+            int end;
+            if (start < length && line.charAt(start) == '"') {
+                int close = start + 1;
+                boolean escaped = false;
+                while (true) {
+                    close = line.indexOf('"', close);
+                    if (close < 0) {
+                        return false;
+                    }
+                    if (close + 1 < length && line.charAt(close + 1) == '"') {
+                        escaped = true;
+                        close += 2;
+                    } else {
+                        break;
+                    }
+                }
+                starts[column] = start + 1;
+                ends[column] = close;
+                if (escaped) {
+                    unescaped[column] = line.substring(start + 1, close).replace("\"\"", "\"");
+                }
+                end = last ? length : line.indexOf(',', close + 1);
+            } else {
+                end = last ? length : line.indexOf(',', start);
+                starts[column] = start;
+                ends[column] = end;
+            }
+            if (end < 0) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    public void appendField(StringBuilder out, int column) {
+        if (unescaped[column] != null) {
+            out.append(unescaped[column]);
+        } else {
+            out.append(line, starts[column], ends[column]);
+        }
+    }
+
+    public String getField(int column) {
+        if (unescaped[column] != null) {
+            return unescaped[column].trim();
+        }
+        return line.substring(starts[column], ends[column]).trim();
+    }
+}
+
+class CampaignReport {
+    private final long read;
+    private final long delivered;
+    private final long failed;
+    private final long invalid;
+    private final long elapsedNanos;
+
+    public CampaignReport(long read, long delivered, long failed, long invalid, long elapsedNanos) {
+        this.read = read;
+        this.delivered = delivered;
+        this.failed = failed;
+        this.invalid = invalid;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public void print() {
+        System.out.println("\n=== RESUMEN DE LA CAMPAÑA ===");
+        System.out.println("Destinatarios leídos: " + read);
+        System.out.println("Entregados: " + delivered);
+        System.out.println("Fallidos: " + failed);
+        if (invalid > 0) {
+            System.out.println("Líneas inválidas: " + invalid);
+        }
+        System.out.println("Tiempo: " + elapsedNanos / 1_000_000 + " ms");
+        System.out.printf("Rendimiento: %.1f mensajes/s%n", elapsedNanos == 0 ? 0 : read * 1_000_000_000.0 / elapsedNanos);
+    }
+}
+
+// Envío masivo en streaming: un hilo lee el archivo en tandas que los hilos de campaña renderizan
+// y despachan en paralelo. Las tandas salen de un juego fijo de arrays que se reciclan y cada hilo
+// espera a que se entregue su tanda antes de tomar otra, así que la memoria depende de hilos x lote
+// y no del tamaño de la lista
+class MarketingCampaign {
+    private final ChannelImplementor channel;
+    private final ChannelDispatcher dispatcher;
+    private final String subjectTemplate;
+    private final String contentTemplate;
+    private final int parallelism;
+    private final int chunkSize;
+    private final LongAdder read = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+
+    public MarketingCampaign(ChannelImplementor channel, ChannelDispatcher dispatcher, String subjectTemplate,
+                             String contentTemplate, int parallelism, int chunkSize) {
+        this.channel = channel;
+        this.dispatcher = dispatcher;
+        this.subjectTemplate = subjectTemplate;
+        this.contentTemplate = contentTemplate;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    public CampaignReport run(Path recipientsFile, long progressMillis) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(recipientsFile, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return new CampaignReport(0, 0, 0, 0, 0);
+            }
+            List<String> columns = RecipientRow.parseHeader(header);
+            int recipientColumn = Math.max(0, columns.indexOf("destinatario"));
+            MessageTemplate subject = MessageTemplate.compile(subjectTemplate, columns);
+            MessageTemplate content = MessageTemplate.compile(contentTemplate, columns);
+
+            BlockingQueue<String[]> free = new ArrayBlockingQueue<>(parallelism * 2);
+            BlockingQueue<String[]> work = new ArrayBlockingQueue<>(parallelism * 2);
+            for (int i = 0; i < parallelism * 2; i++) {
+                free.add(new String[chunkSize]);
+            }
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism, DispatchThreads.platformFactory("campana-"));
+            for (int i = 0; i < parallelism; i++) {
+                workers.execute(() -> {
+                    try {
+                        sendChunks(work, free, new RecipientRow(columns.size()), recipientColumn, subject, content);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+            workers.shutdown();
+
+            ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(
+                    DispatchThreads.platformFactory("campana-progreso-"));
+            progress.scheduleAtFixedRate(() -> printProgress(start), progressMillis, progressMillis, TimeUnit.MILLISECONDS);
+            try {
+                String[] chunk = take(free, failure);
+                int size = 0;
+                String line;
+                while (chunk != null && (line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    chunk[size++] = line;
+                    read.increment();
+                    if (size == chunkSize) {
+                        work.put(chunk);
+                        chunk = take(free, failure);
+                        size = 0;
+                    }
+                }
+                if (chunk != null && size > 0) {
+                    work.put(chunk);
+                }
+            } finally {
+                // Si un hilo murió puede que nadie vacíe la cola: los demás se despiertan interrumpiéndolos
+                for (int i = 0; i < parallelism; i++) {
+                    if (!offer(work, new String[0], failure)) {
+                        workers.shutdownNow();
+                        break;
+                    }
+                }
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                progress.shutdownNow();
+            }
+            Throwable error = failure.get();
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+        }
+        return new CampaignReport(read.sum(), delivered.sum(), failed.sum(), invalid.sum(), System.nanoTime() - start);
+    }
+
+    // Las esperas del lector tienen plazo para no quedarse bloqueado si un hilo de campaña murió y ya
+    // no recicla tandas; devuelven null o false en cuanto hay un fallo registrado
+    private static String[] take(BlockingQueue<String[]> queue, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        String[] chunk;
+        while ((chunk = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (failure.get() != null) {
+                return null;
+            }
+        }
+        return chunk;
+    }
+
+    private static boolean offer(BlockingQueue<String[]> queue, String[] chunk, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Un array vacío marca el fin; una tanda incompleta termina en el primer null. Un envío que
+    // lanza una excepción cuenta como fallido y no detiene el hilo
+    private void sendChunks(BlockingQueue<String[]> work, BlockingQueue<String[]> free, RecipientRow row,
+                            int recipientColumn, MessageTemplate subject, MessageTemplate content) {
+        StringBuilder subjectBuffer = new StringBuilder(128);
+        StringBuilder contentBuffer = new StringBuilder(1024);
+        List<CompletableFuture<DeliveryResult>> pending = new ArrayList<>(chunkSize);
+        while (true) {
+            String[] chunk;
+            try {
+                chunk = work.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (chunk.length == 0) {
+                return;
+            }
+
+            for (int i = 0; i < chunk.length && chunk[i] != null; i++) {
+                if (!row.parse(chunk[i])) {
+                    invalid.increment();
+                    failed.increment();
+                    continue;
+                }
+                subjectBuffer.setLength(0);
+                subject.renderTo(subjectBuffer, row);
+                contentBuffer.setLength(0);
+                content.renderTo(contentBuffer, row);
+                contentBuffer.append(MarketingNotification.FOOTER);
+                try {
+                    pending.add(dispatcher.offer(channel, row.getField(recipientColumn),
+                            subjectBuffer.toString(), contentBuffer.toString(), "LOW"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.increment();
+                    return;
+                } catch (RuntimeException e) {
+                    failed.increment();
+                }
+            }
+            for (CompletableFuture<DeliveryResult> delivery : pending) {
+                boolean ok;
+                try {
+                    ok = delivery.join().isDelivered();
+                } catch (CompletionException | CancellationException e) {
+                    ok = false;
+                }
+                if (ok) {
+                    delivered.increment();
+                } else {
+                    failed.increment();
+                }
+            }
+            pending.clear();
+            Arrays.fill(chunk, null);
+            free.add(chunk);
+        }
+    }
+
+    private void printProgress(long start) {
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        long done = delivered.sum() + failed.sum();
+        System.out.printf("Campaña: %d leídos, %d entregados, %d fallidos (%.0f mensajes/s)%n",
+                read.sum(), delivered.sum(), failed.sum(), seconds == 0 ? 0 : done / seconds);
+    }
+}
+
+class CampaignOptions {
+    private Path recipients;
+    private String channel = "email-exchange";
+    private String subject;
+    private String message;
+    private int parallelism = 4;
+    private int chunkSize = 500;
+    private int progressMillis = 1000;
+    private Path outbox;
+
+    public static CampaignOptions parse(String[] args) {
+        CampaignOptions options = new CampaignOptions();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--campana":
+                    options.recipients = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--canal":
+                    options.channel = requireValue(args, ++i);
+                    break;
+                case "--asunto":
+                    options.subject = requireValue(args, ++i);
+                    break;
+                case "--mensaje":
+                    options.message = requireValue(args, ++i);
+                    break;
+                case "--hilos":
+                    options.parallelism = requirePositive(args, ++i);
+                    break;
+                case "--lote":
+                    options.chunkSize = requirePositive(args, ++i);
+                    break;
+                case "--progreso-ms":
+                    options.progressMillis = requirePositive(args, ++i);
+                    break;
+                case "--outbox":
+                    options.outbox = Paths.get(requireValue(args, ++i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento no reconocido: " + args[i]);
+            }
+        }
+        if (options.recipients == null || options.subject == null || options.message == null) {
+            throw new IllegalArgumentException("Faltan --campana, --asunto o --mensaje");
+        }
+        return options;
+    }
+
+    static String requireValue(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Falta el valor de " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    static int requirePositive(String[] args, int i) {
+        String value = requireValue(args, i);
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // se informa abajo
+        }
+        throw new IllegalArgumentException("Valor inválido para " + args[i - 1] + ": " + value);
+    }
+
+    public Path getRecipients() {
+        return recipients;
+    }
+
+    // Directorio del outbox, o null si la campaña se envía sin persistir
+    public Path getOutbox() {
+        return outbox;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getProgressMillis() {
+        return progressMillis;
+    }
+}
+
+// Los adaptadores devuelven si el proveedor aceptó el mensaje; en los envíos por lote, uno por destinatario
+interface EmailAdapter {
+    boolean send(String to, String subject, String body, String priority);
+
+    // Un único correo con todos los destinatarios
+    boolean sendToMany(List<String> to, String subject, String body, String priority);
+}
+
+interface SMSAdapter {
+    boolean sendSMS(String phoneNumber, String message, String priority);
+
+    boolean[] sendSMSBatch(List<String> phoneNumbers, String message, String priority);
+}
+
+interface SlackAdapter {
+    boolean postMessage(String channel, String title, String message, String priority);
+
+    boolean[] postMessages(List<String> channels, String title, String message, String priority);
+}
+
+// Cliente de larga vida de un proveedor externo (una conexión, en un cliente real)
+interface BackendClient {
+    boolean ping();
+
+    void close();
+}
+
+class OutlookExchangeServer implements BackendClient {
+    private volatile boolean connected = true;
+
+    @Override
+    public boolean ping() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private void requireConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Conexión con Exchange cerrada");
+        }
+    }
+
+    public void sendExchangeEmail(String toAddress, String emailSubject,
+                                  String emailBody, boolean isHighPriority) {
+        requireConnected();
+        System.out.println("SERVIDOR EXCHANGE: Enviando email:");
+        System.out.println("   Para: " + toAddress);
+        System.out.println("   Asunto: " + emailSubject);
+        System.out.println("   Prioridad Alta: " + isHighPriority);
+        System.out.println("   Email enviado via Exchange");
+    }
+
+    public void sendExchangeEmail(List<String> toAddresses, String emailSubject,
+                                  String emailBody, boolean isHighPriority) {
+        requireConnected();
+        System.out.println("SERVIDOR EXCHANGE: Enviando email a varios destinatarios:");
+        System.out.println("   Para: " + RecipientList.describe(toAddresses));
+        System.out.println("   Asunto: " + emailSubject);
+        System.out.println("   Prioridad Alta: " + isHighPriority);
+        System.out.println("   Email enviado via Exchange");
+    }
+}
+
+class RecipientList {
+
+    // Para los registros: los primeros destinatarios y cuántos hay en total
+    public static String describe(List<String> recipients) {
+        if (recipients.size() <= 3) {
+            return String.join(", ", recipients);
+        }
+        return String.join(", ", recipients.subList(0, 3)) + " y " + (recipients.size() - 3) + " más";
+    }
+}
+
+class TwilioSMSService implements BackendClient {
+    private volatile boolean connected = true;
+
+    @Override
+    public boolean ping() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private void requireConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Conexión con Twilio cerrada");
+        }
+    }
+
+    public boolean transmitSMS(String destinationNumber, String textContent,
+                               String urgencyLevel) {
+        requireConnected();
+        System.out.println("API TWILIO: Enviando SMS:");
+        System.out.println("   Destino: " + destinationNumber);
+        System.out.println("   Mensaje: " + textContent);
+        System.out.println("   Urgencia: " + urgencyLevel);
+        System.out.println("   SMS enviado via Twilio");
+        return true;
+    }
+
+    public boolean[] transmitBulkSMS(List<String> destinationNumbers, String textContent,
+                                     String urgencyLevel) {
+        requireConnected();
+        System.out.println("API TWILIO: Enviando SMS masivo:");
+        System.out.println("   Destinos: " + RecipientList.describe(destinationNumbers));
+        System.out.println("   Mensaje: " + textContent);
+        System.out.println("   Urgencia: " + urgencyLevel);
+        System.out.println("   " + destinationNumbers.size() + " SMS enviados via Twilio");
+        boolean[] accepted = new boolean[destinationNumbers.size()];
+        Arrays.fill(accepted, true);
+        return accepted;
+    }
+}
+
+class LegacySMTPServer implements BackendClient {
+    private final SmtpClient transport;
+    private volatile boolean connected = true;
+
+    // Sin transporte solo simula el envío por consola
+    public LegacySMTPServer() {
+        this(null);
+    }
+
+    // El transporte lo comparten todas las conexiones del pool, así que cerrar esta no lo cierra
+    public LegacySMTPServer(SmtpClient transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public boolean ping() {
+        return connected && (transport == null || transport.isOpen());
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private void requireConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Conexión con el servidor SMTP cerrada");
+        }
+    }
+
+    public boolean relayMessage(String recipient, String title, String body, int priorityCode) {
+        requireConnected();
+        if (transport != null) {
+            return transport.send(List.of(recipient), title, body, priorityCode).join();
+        }
+        System.out.println("SMTP LEGACY: Enviando email:");
+        System.out.println("   Destinatario: " + recipient);
+        System.out.println("   Título: " + title);
+        System.out.println("   Código Prioridad: " + priorityCode);
+        System.out.println("   Email enviado via SMTP Legacy");
+        return true;
+    }
+
+    // Una sola transacción SMTP con un RCPT TO por destinatario
+    public boolean relayMessage(List<String> recipients, String title, String body, int priorityCode) {
+        requireConnected();
+        if (transport != null) {
+            return transport.send(recipients, title, body, priorityCode).join();
+        }
+        System.out.println("SMTP LEGACY: Enviando email a varios destinatarios:");
+        System.out.println("   Destinatarios: " + RecipientList.describe(recipients));
+        System.out.println("   Título: " + title);
+        System.out.println("   Código Prioridad: " + priorityCode);
+        System.out.println("   Email enviado via SMTP Legacy");
+        return true;
+    }
+}
+
+// Correo ya codificado para el transporte: cabeceras y cuerpo en UTF-8 con CRLF, sin dot-stuffing
+class SmtpMessage {
+    private static final DateTimeFormatter DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final int MAX_LINE_BYTES = 998;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<String> recipients;
+    private final byte[] content;
+    // Solo si el cuerpo va en 8 bits: encabezados y cuerpo para recodificarlo si el servidor no anuncia
+    // 8BITMIME. La versión de 7 bits se hace en el hilo del selector la primera vez que hace falta
+    private final byte[] headers;
+    private final byte[] body;
+    private byte[] sevenBitContent;
+    private final long enqueuedAt = System.nanoTime();
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    private int rejectedRecipients;
+    private boolean senderRejected;
+
+    private SmtpMessage(List<String> recipients, byte[] content, byte[] headers, byte[] body) {
+        this.recipients = recipients;
+        this.content = content;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    // El cuerpo va tal cual (7bit) si es ASCII, en 8bit si no, y en quoted-printable si alguna línea
+    // pasa de 998 bytes, que ningún servidor tiene por qué aceptar
+    public static SmtpMessage encode(String from, List<String> recipients, String subject, String body,
+                                     int priorityCode) {
+        requireAddress(from);
+        for (String recipient : recipients) {
+            requireAddress(recipient);
+        }
+        StringBuilder text = new StringBuilder(320);
+        text.append("Date: ").append(DATE.format(ZonedDateTime.now())).append("\r\n");
+        text.append("From: <").append(from).append(">\r\n");
+        // Los envíos masivos no exponen la lista de destinatarios
+        text.append(recipients.size() == 1 ? "To: <" + recipients.get(0) + ">" : "To: undisclosed-recipients:;")
+                .append("\r\n");
+        text.append("Subject: ");
+        appendHeaderValue(text, subject);
+        text.append("\r\nX-Priority: ").append(priorityCode * 2 - 1).append("\r\n");
+        text.append("MIME-Version: 1.0\r\nContent-Type: text/plain; charset=UTF-8\r\n");
+        byte[] headers = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        StringBuilder lines = new StringBuilder(body.length() + 16);
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < body.length() && body.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lines.append("\r\n");
+            } else if (c == '\n') {
+                lines.append("\r\n");
+            } else {
+                lines.append(c);
+            }
+        }
+        if (lines.length() == 0 || lines.charAt(lines.length() - 1) != '\n') {
+            lines.append("\r\n");
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+        boolean ascii = true;
+        int longest = 0;
+        for (int i = 0, lineStart = 0; i < bytes.length; i++) {
+            ascii &= bytes[i] >= 0;
+            if (bytes[i] == '\n') {
+                longest = Math.max(longest, i - 1 - lineStart);
+                lineStart = i + 1;
+            }
+        }
+        if (longest > MAX_LINE_BYTES) {
+            return new SmtpMessage(recipients, join(headers, "quoted-printable", quotedPrintable(bytes)), null, null);
+        }
+        if (ascii) {
+            return new SmtpMessage(recipients, join(headers, "7bit", bytes), null, null);
+        }
+        return new SmtpMessage(recipients, join(headers, "8bit", bytes), headers, bytes);
+    }
+
+    // CR o LF colarían comandos o encabezados, y < o > cerrarían antes de tiempo el RCPT TO:<...>
+    static void requireAddress(String address) {
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == '\r' || c == '\n' || c == '<' || c == '>') {
+                throw new IllegalArgumentException("Dirección no válida para SMTP: "
+                        + address.replace("\r", "\\r").replace("\n", "\\n"));
+            }
+        }
+    }
+
+    private static byte[] join(byte[] headers, String transferEncoding, byte[] body) {
+        byte[] line = ("Content-Transfer-Encoding: " + transferEncoding + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] joined = Arrays.copyOf(headers, headers.length + line.length + body.length);
+        System.arraycopy(line, 0, joined, headers.length, line.length);
+        System.arraycopy(body, 0, joined, headers.length + line.length, body.length);
+        return joined;
+    }
+
+    // RFC 2045: líneas de a lo sumo 76 con saltos suaves "=", y el espacio final de una línea codificado
+    static byte[] quotedPrintable(byte[] body) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.length + body.length / 2);
+        int column = 0;
+        for (int i = 0; i < body.length; i++) {
+            int b = body[i] & 0xFF;
+            if (b == '\r' && i + 1 < body.length && body[i + 1] == '\n') {
+                encoded.write('\r');
+                encoded.write('\n');
+                column = 0;
+                i++;
+                continue;
+            }
+            boolean lineEnd = i + 1 == body.length || body[i + 1] == '\r';
+            boolean literal = (b >= 33 && b <= 126 && b != '=') || ((b == ' ' || b == '\t') && !lineEnd);
+            int width = literal ? 1 : 3;
+            if (column + width > 75) {
+                encoded.write('=');
+                encoded.write('\r');
+                encoded.write('\n');
+                column = 0;
+            }
+            if (literal) {
+                encoded.write(b);
+            } else {
+                encoded.write('=');
+                encoded.write(HEX[b >> 4]);
+                encoded.write(HEX[b & 0x0F]);
+            }
+            column += width;
+        }
+        return encoded.toByteArray();
+    }
+
+    // Texto ASCII tal cual; si no, palabras codificadas de RFC 2047 de a lo sumo 30 caracteres
+    private static void appendHeaderValue(StringBuilder text, String value) {
+        boolean ascii = true;
+        for (int i = 0; i < value.length() && ascii; i++) {
+            char c = value.charAt(i);
+            ascii = c >= 0x20 && c < 0x7F;
+        }
+        if (ascii) {
+            text.append(value);
+            return;
+        }
+        Base64.Encoder base64 = Base64.getEncoder();
+        for (int start = 0; start < value.length(); ) {
+            int end = Math.min(value.length(), start + 30);
+            if (end < value.length() && Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--;
+            }
+            if (start > 0) {
+                text.append("\r\n ");
+            }
+            text.append("=?UTF-8?B?")
+                    .append(base64.encodeToString(value.substring(start, end).getBytes(StandardCharsets.UTF_8)))
+                    .append("?=");
+            start = end;
+        }
+    }
+
+    // Para DATA: un punto al inicio de línea se duplica y el mensaje termina en CRLF.CRLF
+    byte[] dotStuffed(boolean eightBitMime) {
+        byte[] content = getContent(eightBitMime);
+        ByteArrayOutputStream stuffed = new ByteArrayOutputStream(content.length + 16);
+        boolean lineStart = true;
+        for (byte b : content) {
+            if (lineStart && b == '.') {
+                stuffed.write('.');
+            }
+            stuffed.write(b);
+            lineStart = b == '\n';
+        }
+        stuffed.write('.');
+        stuffed.write('\r');
+        stuffed.write('\n');
+        return stuffed.toByteArray();
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    boolean isEightBit() {
+        return body != null;
+    }
+
+    // El mensaje tal como lo puede recibir un servidor con o sin 8BITMIME
+    public byte[] getContent(boolean eightBitMime) {
+        if (eightBitMime || body == null) {
+            return content;
+        }
+        if (sevenBitContent == null) {
+            sevenBitContent = join(headers, "quoted-printable", quotedPrintable(body));
+        }
+        return sevenBitContent;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public CompletableFuture<Boolean> getResult() {
+        return result;
+    }
+
+    int getRejectedRecipients() {
+        return rejectedRecipients;
+    }
+
+    void rejectRecipient() {
+        rejectedRecipients++;
+    }
+
+    boolean isSenderRejected() {
+        return senderRejected;
+    }
+
+    void rejectSender() {
+        senderRejected = true;
+    }
+}
+
+// Cliente SMTP no bloqueante: un solo hilo con un Selector atiende todas las conexiones, que se
+// abren bajo demanda hasta el máximo y se reutilizan para varios mensajes por sesión. Si el servidor
+// anuncia PIPELINING se mandan MAIL, RCPT y el cuerpo sin esperar cada respuesta, con hasta
+// pipelineDepth transacciones en vuelo por conexión. Con CHUNKING el cuerpo va como BDAT y no hay que
+// esperar el 354; sin CHUNKING el DATA obliga a esperar el 354 de cada mensaje antes de su cuerpo.
+// Una transacción fallida puede dejar abierta la del servidor, así que la siguiente empieza con RSET;
+// si el servidor pasa replyTimeoutMillis sin responder se da la conexión por perdida
+class SmtpClient implements Closeable {
+    private static final int GREETING = 0;
+    private static final int EHLO = 1;
+    private static final int MAIL = 2;
+    private static final int RCPT = 3;
+    private static final int DATA = 4;
+    private static final int BODY = 5;
+    private static final int QUIT = 6;
+    private static final int RSET = 7;
+
+    private final InetSocketAddress server;
+    private final String heloName;
+    private final String mailFrom;
+    private final int maxConnections;
+    private final int pipelineDepth;
+    private final int messagesPerSession;
+    private final long idleNanos;
+    private final long replyTimeoutNanos;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final ConcurrentLinkedQueue<SmtpMessage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final List<Connection> connections = new ArrayList<>();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejectedRecipients = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private volatile boolean closed;
+
+    public SmtpClient(InetSocketAddress server, String heloName, String mailFrom, int maxConnections,
+                      int pipelineDepth, int messagesPerSession, long idleMillis,
+                      long replyTimeoutMillis) throws IOException {
+        this.server = server;
+        this.heloName = heloName;
+        this.mailFrom = mailFrom;
+        this.maxConnections = maxConnections;
+        this.pipelineDepth = pipelineDepth;
+        this.messagesPerSession = messagesPerSession;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.replyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(replyTimeoutMillis);
+        this.selector = Selector.open();
+        this.ioThread = DispatchThreads.platformFactory("smtp-io-").newThread(this::run);
+        ioThread.start();
+    }
+
+    // "host:puerto"; sin puerto se usa el 25
+    public static InetSocketAddress parseAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(value, 25);
+        }
+        return new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    // No bloquea: el mensaje se codifica en el hilo que llama y el hilo del selector lo envía
+    public CompletableFuture<Boolean> send(List<String> recipients, String subject, String body, int priorityCode) {
+        SmtpMessage message = SmtpMessage.encode(mailFrom, recipients, subject, body, priorityCode);
+        if (closed) {
+            complete(message, false);
+            return message.getResult();
+        }
+        queue.add(message);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return message.getResult();
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    private void run() {
+        long closeDeadline = Long.MAX_VALUE;
+        while (true) {
+            try {
+                selector.select(250);
+            } catch (IOException e) {
+                System.out.println("Error en el selector SMTP: " + e);
+                break;
+            }
+            wakeupPending.set(false);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        connection.finishConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    connection.fail(e);
+                }
+            }
+            selector.selectedKeys().clear();
+
+            if (closed && closeDeadline == Long.MAX_VALUE) {
+                closeDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            }
+            schedule();
+            if (closed && ((queue.isEmpty() && connections.isEmpty()) || System.nanoTime() > closeDeadline)) {
+                break;
+            }
+        }
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.fail(new IOException("Cliente SMTP cerrado"));
+        }
+        failQueued();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ya no hay nada que cerrar
+        }
+    }
+
+    private void schedule() {
+        boolean capacity = false;
+        long now = System.nanoTime();
+        for (Connection connection : new ArrayList<>(connections)) {
+            try {
+                connection.checkReplyTimeout(now);
+                connection.fill();
+                connection.quitIfDone(now);
+            } catch (IOException | RuntimeException e) {
+                connection.fail(e);
+                continue;
+            }
+            capacity |= connection.hasCapacity();
+        }
+        if (!queue.isEmpty() && !capacity && connections.size() < maxConnections) {
+            open();
+        }
+    }
+
+    private void open() {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connections.add(connection);
+            sessions.increment();
+            if (channel.connect(server)) {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } else {
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            }
+        } catch (IOException e) {
+            System.out.println("No se pudo conectar con el servidor SMTP " + server + ": " + e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // ya estaba cerrado
+                }
+            }
+            if (connections.isEmpty()) {
+                failQueued();
+            }
+        }
+    }
+
+    private void failQueued() {
+        SmtpMessage message;
+        while ((message = queue.poll()) != null) {
+            complete(message, false);
+        }
+    }
+
+    private void complete(SmtpMessage message, boolean ok) {
+        if (message.getResult().complete(ok)) {
+            (ok ? delivered : failed).increment();
+            rejectedRecipients.add(message.getRejectedRecipients());
+        }
+    }
+
+    public String describe() {
+        return "SMTP " + server + ": " + delivered.sum() + " entregados, " + failed.sum() + " fallidos, "
+                + rejectedRecipients.sum() + " destinatarios rechazados, " + sessions.sum() + " sesiones";
+    }
+
+    // Termina lo que ya está en cola (hasta 5 s) y cierra las sesiones con QUIT
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Command {
+        final int kind;
+        final SmtpMessage message;
+        final byte[] bytes;
+
+        Command(int kind, SmtpMessage message, byte[] bytes) {
+            this.kind = kind;
+            this.message = message;
+            this.bytes = bytes;
+        }
+
+        static Command line(int kind, SmtpMessage message, String line) {
+            return new Command(kind, message, (line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Solo la usa el hilo del selector
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        private ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+        private final ArrayDeque<Command> toSend = new ArrayDeque<>();
+        private final ArrayDeque<Command> awaiting = new ArrayDeque<>();
+        private final List<String> replyLines = new ArrayList<>();
+        private SelectionKey key;
+        private boolean ready;
+        private boolean pipelining;
+        private boolean chunking;
+        private boolean eightBitMime;
+        private boolean barrier = true;
+        private boolean quitting;
+        private int inFlight;
+        private int sessionMessages;
+        private long lastActivity = System.nanoTime();
+        // Desde cuándo se espera respuesta sin que llegue nada ni salga nada
+        private long waitingSince = System.nanoTime();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            awaiting.add(new Command(GREETING, null, new byte[0]));
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        boolean hasCapacity() {
+            return !quitting && (!ready || (inFlight < depth() && sessionMessages < messagesPerSession));
+        }
+
+        private int depth() {
+            return pipelining ? pipelineDepth : 1;
+        }
+
+        void fill() throws IOException {
+            if (!ready || quitting || closed && queue.isEmpty()) {
+                return;
+            }
+            while (inFlight < depth() && sessionMessages < messagesPerSession) {
+                SmtpMessage message = queue.poll();
+                if (message == null) {
+                    break;
+                }
+                // Con BDAT en pipeline las transacciones siguientes ya salieron cuando se sabe que una
+                // falló, así que ahí cada una empieza con RSET; en los demás modos solo tras un fallo
+                if (chunking && pipelining && sessionMessages > 0) {
+                    toSend.add(Command.line(RSET, null, "RSET"));
+                }
+                inFlight++;
+                sessionMessages++;
+                boolean eightBitBody = eightBitMime && message.isEightBit();
+                toSend.add(Command.line(MAIL, message,
+                        "MAIL FROM:<" + mailFrom + ">" + (eightBitBody ? " BODY=8BITMIME" : "")));
+                for (String recipient : message.getRecipients()) {
+                    toSend.add(Command.line(RCPT, message, "RCPT TO:<" + recipient + ">"));
+                }
+                if (chunking) {
+                    byte[] content = message.getContent(eightBitMime);
+                    byte[] header = ("BDAT " + content.length + " LAST\r\n").getBytes(StandardCharsets.US_ASCII);
+                    byte[] command = Arrays.copyOf(header, header.length + content.length);
+                    System.arraycopy(content, 0, command, header.length, content.length);
+                    toSend.add(new Command(BODY, message, command));
+                } else {
+                    toSend.add(Command.line(DATA, message, "DATA"));
+                }
+            }
+            writePending();
+        }
+
+        void checkReplyTimeout(long now) throws IOException {
+            if (!awaiting.isEmpty() && now - waitingSince > replyTimeoutNanos) {
+                throw new IOException("El servidor SMTP no respondió en "
+                        + TimeUnit.NANOSECONDS.toMillis(replyTimeoutNanos) + " ms");
+            }
+        }
+
+        void quitIfDone(long now) throws IOException {
+            if (!ready || quitting || inFlight > 0) {
+                return;
+            }
+            if (closed || sessionMessages >= messagesPerSession || now - lastActivity > idleNanos) {
+                quitting = true;
+                toSend.add(Command.line(QUIT, null, "QUIT"));
+                writePending();
+            }
+        }
+
+        // Sin PIPELINING cada comando espera su respuesta; con él solo DATA, EHLO y QUIT cortan la tanda
+        private void writePending() throws IOException {
+            while (!barrier && !toSend.isEmpty()) {
+                Command command = toSend.poll();
+                append(command.bytes);
+                if (awaiting.isEmpty()) {
+                    waitingSince = System.nanoTime();
+                }
+                awaiting.add(command);
+                if (!pipelining || command.kind == DATA || command.kind == EHLO || command.kind == QUIT) {
+                    barrier = true;
+                }
+            }
+            flush();
+        }
+
+        private void append(byte[] bytes) {
+            if (out.remaining() < bytes.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(bytes);
+        }
+
+        void flush() throws IOException {
+            if (out.position() == 0 || !channel.isConnected()) {
+                return;
+            }
+            out.flip();
+            if (channel.write(out) > 0) {
+                waitingSince = System.nanoTime();
+            }
+            out.compact();
+            int ops = SelectionKey.OP_READ | (out.position() > 0 ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                if (quitting && awaiting.isEmpty()) {
+                    close();
+                    return;
+                }
+                throw new EOFException("El servidor SMTP cerró la conexión");
+            }
+            lastActivity = System.nanoTime();
+            in.flip();
+            int start = in.position();
+            for (int i = start; i + 1 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                    replyLine(start, i);
+                    start = i + 2;
+                    i++;
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                }
+            }
+            in.position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                throw new IOException("Respuesta SMTP demasiado larga");
+            }
+            fill();
+        }
+
+        private void replyLine(int start, int end) throws IOException {
+            if (end - start < 3) {
+                throw new IOException("Respuesta SMTP inválida");
+            }
+            int code = (in.get(start) - '0') * 100 + (in.get(start + 1) - '0') * 10 + (in.get(start + 2) - '0');
+            boolean more = end - start > 3 && in.get(start + 3) == '-';
+            Command expected = awaiting.peek();
+            if (expected != null && expected.kind == EHLO) {
+                byte[] text = new byte[Math.max(0, end - start - 4)];
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = in.get(start + 4 + i);
+                }
+                replyLines.add(new String(text, StandardCharsets.US_ASCII));
+            }
+            if (!more) {
+                reply(code);
+                replyLines.clear();
+            }
+        }
+
+        private void reply(int code) throws IOException {
+            Command command = awaiting.poll();
+            if (command == null) {
+                throw new IOException("Respuesta SMTP inesperada: " + code);
+            }
+            waitingSince = System.nanoTime();
+            boolean positive = code / 100 == 2;
+            switch (command.kind) {
+                case GREETING:
+                    if (code != 220) {
+                        throw new IOException("El servidor SMTP rechazó la conexión: " + code);
+                    }
+                    barrier = false;
+                    toSend.addFirst(Command.line(EHLO, null, "EHLO " + heloName));
+                    break;
+                case EHLO:
+                    if (!positive) {
+                        throw new IOException("EHLO rechazado: " + code);
+                    }
+                    for (String extension : replyLines) {
+                        String name = extension.toUpperCase(Locale.ROOT);
+                        pipelining |= name.equals("PIPELINING");
+                        chunking |= name.equals("CHUNKING");
+                        eightBitMime |= name.equals("8BITMIME");
+                    }
+                    ready = true;
+                    barrier = false;
+                    break;
+                case MAIL:
+                    if (!positive) {
+                        command.message.rejectSender();
+                    }
+                    break;
+                case RCPT:
+                    if (!positive) {
+                        command.message.rejectRecipient();
+                    }
+                    break;
+                case DATA:
+                    barrier = false;
+                    if (code == 354) {
+                        toSend.addFirst(new Command(BODY, command.message, command.message.dotStuffed(eightBitMime)));
+                    } else {
+                        finish(command.message, false);
+                    }
+                    break;
+                case BODY:
+                    finish(command.message, positive && !command.message.isSenderRejected());
+                    break;
+                case RSET:
+                    if (!positive) {
+                        throw new IOException("RSET rechazado: " + code);
+                    }
+                    break;
+                default:
+                    close();
+                    return;
+            }
+            if (!barrier || awaiting.isEmpty()) {
+                barrier = false;
+                writePending();
+            }
+        }
+
+        // Cuando se conoce el resultado, toSend empieza en el límite de una transacción que aún no
+        // salió, así que el RSET tras un fallo va delante de ella
+        private void finish(SmtpMessage message, boolean ok) {
+            inFlight--;
+            if (!ok && !(chunking && pipelining)) {
+                toSend.addFirst(Command.line(RSET, null, "RSET"));
+            }
+            complete(message, ok);
+        }
+
+        void fail(Exception cause) {
+            if (!quitting || !awaiting.isEmpty()) {
+                System.out.println("Conexión SMTP perdida: " + cause.getMessage());
+            }
+            for (Command command : awaiting) {
+                if (command.message != null) {
+                    complete(command.message, false);
+                }
+            }
+            for (Command command : toSend) {
+                if (command.message != null) {
+                    complete(command.message, false);
+                }
+            }
+            boolean wasReady = ready;
+            close();
+            if (!wasReady && connections.isEmpty()) {
+                failQueued();
+            }
+        }
+
+        private void close() {
+            connections.remove(this);
+            awaiting.clear();
+            toSend.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ya estaba cerrada
+            }
+        }
+    }
+}
+
+// Servidor SMTP mínimo en el mismo proceso, para probar el transporte sin red. Acepta PIPELINING y,
+// si se pide, CHUNKING; las respuestas se retrasan replyDelayMillis cada vez que el servidor se queda
+// sin comandos por leer, que es como se ve una ida y vuelta de red desde el cliente
+class StubSmtpServer implements Closeable {
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService sessions = DispatchThreads.newExecutor("smtp-stub-", 64);
+    private final boolean chunking;
+    private final long replyDelayMillis;
+    private final LongAdder accepted = new LongAdder();
+    private volatile boolean running = true;
+
+    public StubSmtpServer(boolean chunking, long replyDelayMillis) throws IOException {
+        this.chunking = chunking;
+        this.replyDelayMillis = replyDelayMillis;
+        this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        DispatchThreads.platformFactory("smtp-stub-accept-").newThread(this::acceptLoop).start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                sessions.execute(() -> serve(client.socket()));
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Error aceptando conexiones en el servidor SMTP de prueba: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket session = socket) {
+            session.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(session.getInputStream());
+            OutputStream out = new BufferedOutputStream(session.getOutputStream());
+            reply(out, "220 stub.local ESMTP");
+            flush(in, out, true);
+            boolean mail = false;
+            int recipients = 0;
+            String line;
+            while ((line = readLine(in)) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line;
+                switch (command) {
+                    case "EHLO":
+                        reply(out, "250-stub.local\r\n250-PIPELINING\r\n" + (chunking ? "250-CHUNKING\r\n" : "")
+                                + "250 8BITMIME");
+                        break;
+                    case "HELO":
+                    case "NOOP":
+                        reply(out, "250 Ok");
+                        break;
+                    case "RSET":
+                        mail = false;
+                        recipients = 0;
+                        reply(out, "250 Ok");
+                        break;
+                    case "MAIL":
+                        // Como un MTA real: una transacción que quedó abierta hay que cerrarla con RSET
+                        if (mail) {
+                            reply(out, "503 5.5.1 MAIL anidado");
+                            break;
+                        }
+                        mail = true;
+                        recipients = 0;
+                        reply(out, "250 2.1.0 Ok");
+                        break;
+                    case "RCPT":
+                        if (!mail) {
+                            reply(out, "503 5.5.1 Falta MAIL");
+                        } else if (line.indexOf('@') < 0) {
+                            reply(out, "550 5.1.1 Destinatario inválido");
+                        } else {
+                            recipients++;
+                            reply(out, "250 2.1.5 Ok");
+                        }
+                        break;
+                    case "DATA":
+                        if (!mail || recipients == 0) {
+                            reply(out, mail ? "554 5.5.1 Sin destinatarios válidos" : "503 5.5.1 Falta MAIL");
+                            break;
+                        }
+                        reply(out, "354 Fin con <CRLF>.<CRLF>");
+                        flush(in, out, true);
+                        while ((line = readLine(in)) != null && !line.equals(".")) {
+                            // el contenido se descarta
+                        }
+                        accept(out);
+                        mail = false;
+                        break;
+                    case "BDAT":
+                        String[] parts = line.split(" ");
+                        in.skipNBytes(Long.parseLong(parts[1]));
+                        if (parts.length < 3 || !parts[2].equalsIgnoreCase("LAST")) {
+                            reply(out, "250 2.0.0 Ok");
+                        } else if (!mail || recipients == 0) {
+                            reply(out, "554 5.5.1 Sin destinatarios válidos");
+                        } else {
+                            accept(out);
+                            mail = false;
+                        }
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Adiós");
+                        flush(in, out, true);
+                        return;
+                    default:
+                        reply(out, "500 5.5.2 Comando no reconocido");
+                }
+                flush(in, out, false);
+            }
+        } catch (IOException e) {
+            // el cliente cortó la sesión
+        }
+    }
+
+    private void accept(OutputStream out) throws IOException {
+        accepted.increment();
+        reply(out, "250 2.0.0 Ok: en cola");
+    }
+
+    private static void reply(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    // Las respuestas a una tanda de comandos salen juntas, con un solo retraso
+    private void flush(InputStream in, OutputStream out, boolean always) throws IOException {
+        if (!always && in.available() > 0) {
+            return;
+        }
+        if (replyDelayMillis > 0) {
+            try {
+                Thread.sleep(replyDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrumpido");
+            }
+        }
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        sessions.shutdownNow();
+    }
+}
+
+// Mide mensajes por segundo y latencia por mensaje del cliente SMTP contra el servidor de prueba,
+// con varias profundidades de pipelining. La cantidad en vuelo se limita a conexiones × profundidad × 2
+// para que la latencia sea la del transporte y no la de la cola
+class SmtpBenchmark {
+
+    public static void run(String[] args) {
+        int messages = 20_000;
+        int connections = 4;
+        long delayMillis = 1;
+        boolean chunking = true;
+        int[] depths = {1, 4, 16, 64};
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--smtp-bench":
+                        break;
+                    case "--mensajes":
+                        messages = CampaignOptions.requirePositive(args, ++i);
+                        break;
+                    case "--conexiones":
+                        connections = CampaignOptions.requirePositive(args, ++i);
+                        break;
+                    case "--latencia-ms":
+                        delayMillis = Long.parseLong(CampaignOptions.requireValue(args, ++i));
+                        break;
+                    case "--sin-chunking":
+                        chunking = false;
+                        break;
+                    case "--profundidades":
+                        String[] values = CampaignOptions.requireValue(args, ++i).split(",");
+                        depths = new int[values.length];
+                        for (int d = 0; d < values.length; d++) {
+                            depths[d] = Integer.parseInt(values[d].trim());
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Argumento no reconocido: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Uso: Main --smtp-bench [--mensajes N] [--conexiones N] [--latencia-ms N]"
+                    + " [--profundidades 1,4,16,64] [--sin-chunking]");
+            return;
+        }
+
+        System.out.println("Servidor de prueba " + (chunking ? "con" : "sin") + " CHUNKING, " + delayMillis
+                + " ms por ida y vuelta, " + connections + " conexiones, " + messages + " mensajes");
+        try (StubSmtpServer server = new StubSmtpServer(chunking, delayMillis)) {
+            for (int depth : depths) {
+                try (SmtpClient client = new SmtpClient(server.getAddress(), "bench.local", "bench@empresa.com",
+                        connections, depth, 1000, 30_000, 30_000)) {
+                    measure(client, Math.min(messages, 1000), connections * depth * 2);
+                    long[] latencies = new long[messages];
+                    long start = System.nanoTime();
+                    int failures = measure(client, latencies, connections * depth * 2);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    Arrays.sort(latencies);
+                    System.out.printf("Profundidad %3d: %,10.0f msg/s, p50 %7.2f ms, p99 %7.2f ms, máx %7.2f ms,"
+                                    + " %d fallidos%n", depth, messages / seconds, latencies[messages / 2] / 1e6,
+                            latencies[(int) (messages * 0.99)] / 1e6, latencies[messages - 1] / 1e6, failures);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error en la prueba SMTP: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void measure(SmtpClient client, int messages, int inFlight) throws InterruptedException {
+        measure(client, new long[messages], inFlight);
+    }
+
+    // Devuelve cuántos mensajes no aceptó el servidor
+    private static int measure(SmtpClient client, long[] latencies, int inFlight) throws InterruptedException {
+        AtomicInteger failures = new AtomicInteger();
+        Semaphore window = new Semaphore(inFlight);
+        CountDownLatch done = new CountDownLatch(latencies.length);
+        List<String> recipient = List.of("cliente@empresa.com");
+        for (int i = 0; i < latencies.length; i++) {
+            window.acquire();
+            int index = i;
+            long start = System.nanoTime();
+            client.send(recipient, "Prueba " + i, "Mensaje de prueba número " + i, 2).whenComplete((ok, error) -> {
+                latencies[index] = System.nanoTime() - start;
+                if (!Boolean.TRUE.equals(ok)) {
+                    failures.incrementAndGet();
+                }
+                window.release();
+                done.countDown();
+            });
+        }
+        done.await();
+        return failures.get();
+    }
+}
+
+class SlackWebAPI implements BackendClient {
+    private volatile boolean connected = true;
+
+    @Override
+    public boolean ping() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private void requireConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Conexión con Slack cerrada");
+        }
+    }
+
+    public void publishMessage(String workspace, String channelName,
+                               String messageTitle, String messageBody, boolean isPriority) {
+        requireConnected();
+        System.out.println("API SLACK: Publicando mensaje:");
+        System.out.println("   Canal: " + channelName);
+        System.out.println("   Título: " + messageTitle);
+        System.out.println("   Es Prioritario: " + isPriority);
+        System.out.println("   Mensaje publicado en Slack");
+    }
+
+    public void publishMessages(String workspace, List<String> channelNames,
+                                String messageTitle, String messageBody, boolean isPriority) {
+        requireConnected();
+        System.out.println("API SLACK: Publicando mensaje en varios canales:");
+        System.out.println("   Canales: " + RecipientList.describe(channelNames));
+        System.out.println("   Título: " + messageTitle);
+        System.out.println("   Es Prioritario: " + isPriority);
+        System.out.println("   Mensaje publicado en Slack");
+    }
+}
+
+class OutlookExchangeAdapter implements EmailAdapter {
+    private OutlookExchangeServer exchangeServer;
+
+    public OutlookExchangeAdapter(OutlookExchangeServer exchangeServer) {
+        this.exchangeServer = exchangeServer;
+    }
+
+    @Override
+    public boolean send(String to, String subject, String body, String priority) {
+        boolean isHighPriority = "HIGH".equals(priority);
+        exchangeServer.sendExchangeEmail(to, subject, body, isHighPriority);
+        return true;
+    }
+
+    @Override
+    public boolean sendToMany(List<String> to, String subject, String body, String priority) {
+        exchangeServer.sendExchangeEmail(to, subject, body, "HIGH".equals(priority));
+        return true;
+    }
+}
+
+class LegacySMTPAdapter implements EmailAdapter {
+    private LegacySMTPServer smtpServer;
+
+    public LegacySMTPAdapter(LegacySMTPServer smtpServer) {
+        this.smtpServer = smtpServer;
+    }
+
+    @Override
+    public boolean send(String to, String subject, String body, String priority) {
+        int priorityCode = convertPriorityToCode(priority);
+        return smtpServer.relayMessage(to, subject, body, priorityCode);
+    }
+
+    @Override
+    public boolean sendToMany(List<String> to, String subject, String body, String priority) {
+        return smtpServer.relayMessage(to, subject, body, convertPriorityToCode(priority));
+    }
+
+    private int convertPriorityToCode(String priority) {
+        switch (priority) {
+            case "HIGH": return 1;
+            case "MEDIUM": return 2;
+            case "LOW": return 3;
+            default: return 2;
+        }
+    }
+}
+
+class TwilioSMSAdapter implements SMSAdapter {
+    private TwilioSMSService twilioService;
+
+    public TwilioSMSAdapter(TwilioSMSService twilioService) {
+        this.twilioService = twilioService;
+    }
+
+    @Override
+    public boolean sendSMS(String phoneNumber, String message, String priority) {
+        String urgencyLevel = priority.toLowerCase() + "_urgency";
+        return twilioService.transmitSMS(phoneNumber, message, urgencyLevel);
+    }
+
+    @Override
+    public boolean[] sendSMSBatch(List<String> phoneNumbers, String message, String priority) {
+        return twilioService.transmitBulkSMS(phoneNumbers, message, priority.toLowerCase() + "_urgency");
+    }
+}
+
+class SlackWebAPIAdapter implements SlackAdapter {
+    private SlackWebAPI slackAPI;
+
+    public SlackWebAPIAdapter(SlackWebAPI slackAPI) {
+        this.slackAPI = slackAPI;
+    }
+
+    @Override
+    public boolean postMessage(String channel, String title, String message, String priority) {
+        boolean isPriority = "HIGH".equals(priority);
+        slackAPI.publishMessage("empresa-workspace", channel, title, message, isPriority);
+        return true;
+    }
+
+    @Override
+    public boolean[] postMessages(List<String> channels, String title, String message, String priority) {
+        slackAPI.publishMessages("empresa-workspace", channels, title, message, "HIGH".equals(priority));
+        boolean[] published = new boolean[channels.size()];
+        Arrays.fill(published, true);
+        return published;
+    }
+}
+
+// Token bucket sin candados (algoritmo GCRA): el estado es un único instante teórico de llegada que
+// se avanza con CAS. Reservar nunca bloquea; devuelve cuánto hay que esperar para respetar la tasa
+class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.burstNanos = burst * intervalNanos;
+    }
+
+    public long reserve(int permits) {
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long next = Math.max(arrival, now) + permits * intervalNanos;
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    // Sin reservas pendientes el bucket está lleno y da igual descartarlo y crearlo de nuevo
+    boolean isIdle(long now) {
+        return theoreticalArrival.get() <= now;
+    }
+}
+
+// Un bucket por destino (canal de Slack, número de teléfono...). Los que vuelven a estar llenos se
+// descartan cuando el mapa crece de más, así la memoria no depende de cuántos destinos distintos hubo.
+// El barrido recorre todo el mapa, así que se hace como mucho una vez por intervalo y en un solo hilo
+class KeyedTokenBuckets {
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    public KeyedTokenBuckets(double permitsPerSecond, int burst, int maxKeys) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+    }
+
+    public long reserve(String key, int permits) {
+        if (buckets.size() > maxKeys) {
+            sweep();
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(permitsPerSecond, burst)).reserve(permits);
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+}
+
+// Límite de concurrencia AIMD: cada respuesta rápida y correcta lo sube en 1/límite (más o menos uno
+// por ronda) y cada respuesta lenta o fallida lo multiplica por backoff. Así se estabiliza en la mayor
+// concurrencia que el proveedor aguanta sin degradarse
+class AdaptiveConcurrencyLimit {
+    private final double minLimit;
+    private final double maxLimit;
+    private final long targetLatencyNanos;
+    private final double backoff;
+    private final AtomicLong limitBits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit,
+                                    long targetLatencyMillis, double backoff) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.backoff = backoff;
+        this.limitBits = new AtomicLong(Double.doubleToLongBits(initialLimit));
+    }
+
+    public double getLimit() {
+        return Double.longBitsToDouble(limitBits.get());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public void acquire() throws InterruptedException {
+        if (tryAcquire()) {
+            return;
+        }
+        waiting.incrementAndGet();
+        lock.lock();
+        try {
+            while (!tryAcquire()) {
+                released.await();
+            }
+        } finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(long latencyNanos, boolean succeeded) {
+        inFlight.decrementAndGet();
+        while (true) {
+            long bits = limitBits.get();
+            double limit = Double.longBitsToDouble(bits);
+            double next = succeeded && latencyNanos <= targetLatencyNanos
+                    ? Math.min(maxLimit, limit + 1 / limit)
+                    : Math.max(minLimit, limit * backoff);
+            if (next == limit || limitBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                break;
+            }
+        }
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
+
+// Reúne la tasa global de un proveedor, la tasa por destino y la concurrencia adaptativa. La espera
+// ocurre en el hilo de envío (virtual cuando la JVM lo permite), nunca en quien llamó a Notification.send
+// Lo que el hilo actual pasó esperando turno nuestro (conexión del pool, tasa o concurrencia del
+// proveedor) en vez de hablando con el proveedor. Quien juzga la latencia del proveedor lo descuenta
+class LocalWait {
+    private static final ThreadLocal<long[]> NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    static void add(long nanos) {
+        NANOS.get()[0] += nanos;
+    }
+
+    // Lo acumulado desde la llamada anterior; vuelve a cero
+    static long take() {
+        long[] nanos = NANOS.get();
+        long waited = nanos[0];
+        nanos[0] = 0;
+        return waited;
+    }
+}
+
+class ProviderThrottle {
+    private final String name;
+    private final TokenBucket rate;
+    private final KeyedTokenBuckets perDestination;
+    private final AdaptiveConcurrencyLimit concurrency;
+    private final LongAdder delayed = new LongAdder();
+
+    public ProviderThrottle(String name, TokenBucket rate, KeyedTokenBuckets perDestination,
+                            AdaptiveConcurrencyLimit concurrency) {
+        this.name = name;
+        this.rate = rate;
+        this.perDestination = perDestination;
+        this.concurrency = concurrency;
+    }
+
+    // permits es lo que consume la llamada de la tasa global; cada destino consume uno de la suya
+    public boolean call(int permits, List<String> destinations, BooleanSupplier send) {
+        long queued = System.nanoTime();
+        long wait = rate.reserve(permits);
+        if (perDestination != null) {
+            for (String destination : destinations) {
+                wait = Math.max(wait, perDestination.reserve(destination, 1));
+            }
+        }
+        if (wait > 0) {
+            delayed.increment();
+            LockSupport.parkNanos(wait);
+        }
+
+        try {
+            concurrency.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrumpido esperando turno para " + name);
+        }
+        long start = System.nanoTime();
+        LocalWait.add(start - queued);
+        boolean succeeded = false;
+        try {
+            succeeded = send.getAsBoolean();
+            return succeeded;
+        } finally {
+            concurrency.release(System.nanoTime() - start, succeeded);
+        }
+    }
+
+    public String describe() {
+        return String.format("%s: límite de concurrencia %.1f, en vuelo %d, envíos demorados por tasa %d",
+                name, concurrency.getLimit(), concurrency.getInFlight(), delayed.sum());
+    }
+}
+
+class ThrottledEmailAdapter implements EmailAdapter {
+    private final EmailAdapter delegate;
+    private final ProviderThrottle throttle;
+
+    public ThrottledEmailAdapter(EmailAdapter delegate, ProviderThrottle throttle) {
+        this.delegate = delegate;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public boolean send(String to, String subject, String body, String priority) {
+        return throttle.call(1, List.of(to), () -> delegate.send(to, subject, body, priority));
+    }
+
+    // Un correo con varios destinatarios es una sola llamada al servidor
+    @Override
+    public boolean sendToMany(List<String> to, String subject, String body, String priority) {
+        return throttle.call(1, List.of(), () -> delegate.sendToMany(to, subject, body, priority));
+    }
+}
+
+class ThrottledSMSAdapter implements SMSAdapter {
+    private final SMSAdapter delegate;
+    private final ProviderThrottle throttle;
+
+    public ThrottledSMSAdapter(SMSAdapter delegate, ProviderThrottle throttle) {
+        this.delegate = delegate;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public boolean sendSMS(String phoneNumber, String message, String priority) {
+        return throttle.call(1, List.of(phoneNumber), () -> delegate.sendSMS(phoneNumber, message, priority));
+    }
+
+    @Override
+    public boolean[] sendSMSBatch(List<String> phoneNumbers, String message, String priority) {
+        boolean[][] accepted = new boolean[1][];
+        throttle.call(phoneNumbers.size(), phoneNumbers, () -> {
+            accepted[0] = delegate.sendSMSBatch(phoneNumbers, message, priority);
+            return allTrue(accepted[0]);
+        });
+        return accepted[0];
+    }
+
+    static boolean allTrue(boolean[] values) {
+        for (boolean value : values) {
+            if (!value) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+class ThrottledSlackAdapter implements SlackAdapter {
+    private final SlackAdapter delegate;
+    private final ProviderThrottle throttle;
+
+    public ThrottledSlackAdapter(SlackAdapter delegate, ProviderThrottle throttle) {
+        this.delegate = delegate;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public boolean postMessage(String channel, String title, String message, String priority) {
+        return throttle.call(1, List.of(channel), () -> delegate.postMessage(channel, title, message, priority));
+    }
+
+    @Override
+    public boolean[] postMessages(List<String> channels, String title, String message, String priority) {
+        boolean[][] published = new boolean[1][];
+        throttle.call(channels.size(), channels, () -> {
+            published[0] = delegate.postMessages(channels, title, message, priority);
+            return ThrottledSMSAdapter.allTrue(published[0]);
+        });
+        return published[0];
+    }
+}
+
+// Un canal armado sobre su propio cliente de backend; el pool lo reutiliza entre envíos
+class PooledChannel {
+    private final ChannelImplementor channel;
+    private final BackendClient client;
+    private long lastUsedNanos = System.nanoTime();
+
+    public PooledChannel(ChannelImplementor channel, BackendClient client) {
+        this.channel = channel;
+        this.client = client;
+    }
+
+    public ChannelImplementor getChannel() {
+        return channel;
+    }
+
+    public BackendClient getClient() {
+        return client;
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+}
+
+// Pool acotado de canales de un mismo tipo. Cada canal se presta en exclusiva, como una conexión;
+// los libres se guardan en orden LIFO para reutilizar los más recientes y dejar envejecer al resto
+class ChannelPool {
+    private final String name;
+    private final Supplier<PooledChannel> factory;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledChannel> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+
+    public ChannelPool(String name, Supplier<PooledChannel> factory, int maxSize, long idleTimeoutMillis) {
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.permits = new Semaphore(maxSize);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PooledChannel borrow(long timeoutMillis) throws InterruptedException {
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("No hay conexiones libres para " + name + " tras " + timeoutMillis + " ms");
+        }
+        try {
+            PooledChannel pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (pooled.getClient().ping()) {
+                    return pooled;
+                }
+                discard(pooled);
+            }
+            created.incrementAndGet();
+            return factory.get();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Un canal que falló con una excepción se descarta en lugar de volver al pool
+    public void release(PooledChannel pooled, boolean broken) {
+        if (broken) {
+            discard(pooled);
+        } else {
+            pooled.touch();
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    // Cierra los canales libres que llevan más de idleTimeout sin usarse; están al final de la cola
+    public void evictIdle() {
+        long now = System.nanoTime();
+        PooledChannel oldest;
+        while ((oldest = idle.pollLast()) != null) {
+            if (now - oldest.getLastUsedNanos() < idleTimeoutNanos) {
+                idle.offerLast(oldest);
+                return;
+            }
+            evicted.incrementAndGet();
+            discard(oldest);
+        }
+    }
+
+    public void checkHealth() {
+        for (PooledChannel pooled : idle) {
+            if (!pooled.getClient().ping() && idle.remove(pooled)) {
+                discard(pooled);
+            }
+        }
+    }
+
+    private void discard(PooledChannel pooled) {
+        try {
+            pooled.getClient().close();
+        } catch (RuntimeException e) {
+            // el cliente ya no se usa; no hay nada más que hacer con él
+        }
+    }
+
+    public void close() {
+        PooledChannel pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    public String describe() {
+        return name + ": " + (maxSize - permits.availablePermits()) + " en uso, " + idle.size() + " libres, "
+                + created.get() + " creados, " + evicted.get() + " cerrados por inactividad";
+    }
+}
+
+// Canal que no tiene backend propio: en cada envío pide uno al pool y lo devuelve al terminar
+class BorrowedChannel implements ChannelImplementor {
+    private final ChannelPool pool;
+    private final String channelName;
+    private final long borrowTimeoutMillis;
+
+    public BorrowedChannel(ChannelPool pool, String channelName, long borrowTimeoutMillis) {
+        this.pool = pool;
+        this.channelName = channelName;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        PooledChannel pooled = borrow();
+        boolean broken = true;
+        try {
+            DeliveryResult result = pooled.getChannel().sendMessage(recipient, subject, content, priority);
+            broken = false;
+            return result;
+        } finally {
+            pool.release(pooled, broken);
+        }
+    }
+
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        PooledChannel pooled = borrow();
+        boolean broken = true;
+        try {
+            List<DeliveryResult> results = pooled.getChannel().sendBatch(messages);
+            broken = false;
+            return results;
+        } finally {
+            pool.release(pooled, broken);
+        }
+    }
+
+    private PooledChannel borrow() {
+        long start = System.nanoTime();
+        try {
+            return pool.borrow(borrowTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrumpido esperando una conexión de " + pool.getName());
+        } finally {
+            LocalWait.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return channelName;
+    }
+}
+
+enum BreakerState {
+    CERRADO, ABIERTO, SEMIABIERTO
+}
+
+// Cortacircuitos por servidor: tras varios fallos seguidos (o envíos más lentos que el límite) deja
+// de mandarle tráfico durante un tiempo y después deja pasar un único envío de prueba. Cada true de
+// allowRequest debe terminar en un onResult; si la prueba no informa a tiempo se permite otra
+class CircuitBreaker {
+    private final AtomicReference<BreakerState> state = new AtomicReference<>(BreakerState.CERRADO);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long slowCallNanos;
+    // Cuándo se abrió o, en SEMIABIERTO, cuándo salió el envío de prueba
+    private final AtomicLong since = new AtomicLong();
+
+    public CircuitBreaker(int failureThreshold, long openMillis, long slowCallMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+    }
+
+    public boolean allowRequest() {
+        switch (state.get()) {
+            case CERRADO:
+                return true;
+            case ABIERTO:
+                if (System.nanoTime() - since.get() >= openNanos
+                        && state.compareAndSet(BreakerState.ABIERTO, BreakerState.SEMIABIERTO)) {
+                    since.set(System.nanoTime());
+                    return true;
+                }
+                rejected.increment();
+                return false;
+            default:
+                // Ya hay un envío de prueba en curso, salvo que lleve más que el tiempo de apertura sin respuesta
+                long probe = since.get();
+                long now = System.nanoTime();
+                if (now - probe >= openNanos && since.compareAndSet(probe, now)) {
+                    return true;
+                }
+                rejected.increment();
+                return false;
+        }
+    }
+
+    public void onResult(boolean ok, long elapsedNanos) {
+        if (ok && elapsedNanos <= slowCallNanos) {
+            consecutiveFailures.set(0);
+            state.set(BreakerState.CERRADO);
+        } else if (state.get() == BreakerState.SEMIABIERTO
+                || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            consecutiveFailures.set(0);
+            since.set(System.nanoTime());
+            if (state.getAndSet(BreakerState.ABIERTO) != BreakerState.ABIERTO) {
+                opened.increment();
+            }
+        }
+    }
+
+    public BreakerState getState() {
+        return state.get();
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
 }
 
-class EmailChannelImpl implements ChannelImplementor {
-    private EmailAdapter emailAdapter;
+// Percentil de las últimas latencias en un anillo fijo. Se recalcula cada 64 muestras, así que
+// consultarlo es leer un volatile; hasta tener suficientes muestras se usa un valor por defecto
+class LatencyPercentile {
+    private static final int SAMPLES = 512;
+    private static final int MIN_SAMPLES = 32;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong count = new AtomicLong();
+    private final double quantile;
+    private final long floorNanos;
+    private final long defaultNanos;
+    private volatile long value;
+
+    public LatencyPercentile(double quantile, long floorMillis, long defaultMillis) {
+        this.quantile = quantile;
+        this.floorNanos = TimeUnit.MILLISECONDS.toNanos(floorMillis);
+        this.defaultNanos = TimeUnit.MILLISECONDS.toNanos(defaultMillis);
+        this.value = defaultNanos;
+    }
+
+    public void record(long nanos) {
+        long index = count.getAndIncrement();
+        samples.set((int) (index % SAMPLES), nanos);
+        if (index % 64 == 63 && index >= MIN_SAMPLES) {
+            recompute(Math.min(index + 1, SAMPLES));
+        }
+    }
+
+    private void recompute(long size) {
+        long[] sorted = new long[(int) size];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+        value = Math.max(floorNanos, sorted[Math.max(rank, 0)]);
+    }
+
+    public long getNanos() {
+        return count.get() < MIN_SAMPLES ? defaultNanos : value;
+    }
+}
+
+// Canal de email que reparte entre varios servidores (Exchange y SMTP) en orden de preferencia,
+// cada uno con su cortacircuitos: si el primero falla o está abierto se pasa al siguiente.
+// Los envíos HIGH además se cubren: si el primer intento no terminó cuando ya pasó el percentil
+// configurado de su latencia reciente, se lanza otro por el siguiente servidor y gana el primero
+// que entregue. A cambio, un correo urgente puede llegar dos veces
+class FailoverEmailChannel implements AsyncChannel {
+    private static final ScheduledExecutorService HEDGE_TIMER =
+            Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("email-cobertura-"));
+
+    private final List<Backend> backends = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = DispatchThreads.newExecutor("email-respaldo-", 64);
+    private final double hedgeQuantile;
+    private final LongAdder urgentSends = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    public FailoverEmailChannel(double hedgeQuantile) {
+        this.hedgeQuantile = hedgeQuantile;
+    }
+
+    // Los servidores se prueban en el orden en que se agregan
+    public void addBackend(String name, ChannelImplementor channel, CircuitBreaker breaker) {
+        backends.add(new Backend(name, channel, breaker, new LatencyPercentile(hedgeQuantile, 20, 300)));
+    }
 
-    public EmailChannelImpl(EmailAdapter emailAdapter) {
-        this.emailAdapter = emailAdapter;
+    @Override
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        DeliveryResult last = null;
+        for (Backend backend : backends) {
+            if (!backend.breaker.allowRequest()) {
+                continue;
+            }
+            if (last != null || backend != backends.get(0)) {
+                failovers.increment();
+            }
+            last = call(backend, recipient, subject, content, priority);
+            if (last.isDelivered()) {
+                return last;
+            }
+        }
+        return last != null ? last : DeliveryResult.failed(getName(), recipient, "ningún servidor de correo disponible");
     }
 
     @Override
-    public void sendMessage(String recipient, String subject, String content, String priority) {
-        System.out.println("Preparando envío por email...");
-        emailAdapter.send(recipient, subject, content, priority);
+    public CompletableFuture<DeliveryResult> submit(String recipient, String subject, String content, String priority) {
+        if (!"HIGH".equals(priority)) {
+            return CompletableFuture.supplyAsync(() -> sendMessage(recipient, subject, content, priority), executor);
+        }
+        urgentSends.increment();
+        Backend first = available(null);
+        if (first == null) {
+            return CompletableFuture.completedFuture(
+                    DeliveryResult.failed(getName(), recipient, "ningún servidor de correo disponible"));
+        }
+        if (first != backends.get(0)) {
+            failovers.increment();
+        }
+        return new HedgedSend(first, recipient, subject, content, priority).start();
     }
-}
 
-class SMSChannelImpl implements ChannelImplementor {
-    private SMSAdapter smsAdapter;
+    // Los lotes no se cubren: se mandan enteros por el primer servidor disponible
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        List<DeliveryResult> last = null;
+        for (Backend backend : backends) {
+            if (!backend.breaker.allowRequest()) {
+                continue;
+            }
+            LocalWait.take();
+            long start = System.nanoTime();
+            try {
+                last = backend.channel.sendBatch(messages);
+            } catch (RuntimeException e) {
+                backend.breaker.onResult(false, System.nanoTime() - start - LocalWait.take());
+                continue;
+            }
+            long elapsed = System.nanoTime() - start - LocalWait.take();
+            boolean delivered = false;
+            for (DeliveryResult result : last) {
+                delivered |= result.isDelivered();
+            }
+            // El límite de lentitud es por mensaje, así que el lote se juzga por su tiempo medio por mensaje
+            backend.breaker.onResult(delivered, elapsed / Math.max(1, messages.size()));
+            if (delivered) {
+                return last;
+            }
+            failovers.increment();
+        }
+        if (last != null) {
+            return last;
+        }
+        List<DeliveryResult> failed = new ArrayList<>(messages.size());
+        for (OutgoingMessage message : messages) {
+            failed.add(DeliveryResult.failed(getName(), message.getRecipient(), "ningún servidor de correo disponible"));
+        }
+        return failed;
+    }
 
-    public SMSChannelImpl(SMSAdapter smsAdapter) {
-        this.smsAdapter = smsAdapter;
+    // allowRequest puede tomar el único envío de prueba de un servidor semiabierto, así que solo se
+    // llama cuando el servidor que devuelve se va a usar seguro
+    private Backend available(Backend excluded) {
+        for (Backend backend : backends) {
+            if (backend != excluded && backend.breaker.allowRequest()) {
+                return backend;
+            }
+        }
+        return null;
     }
 
-    @Override
-    public void sendMessage(String recipient, String subject, String content, String priority) {
-        System.out.println("Preparando envío por SMS...");
-        String fullMessage = subject + ": " + content;
-        smsAdapter.sendSMS(recipient, fullMessage, priority);
+    // Se mide solo el proveedor: la espera por el pool y el límite de tasa es nuestra y no debe abrir el
+    // cortacircuitos ni subir el umbral de cobertura
+    private DeliveryResult call(Backend backend, String recipient, String subject, String content, String priority) {
+        LocalWait.take();
+        long start = System.nanoTime();
+        DeliveryResult result;
+        try {
+            result = backend.channel.sendMessage(recipient, subject, content, priority);
+        } catch (RuntimeException e) {
+            result = DeliveryResult.failed(getName(), recipient, backend.name + ": " + e.getMessage());
+        }
+        long elapsed = System.nanoTime() - start - LocalWait.take();
+        backend.breaker.onResult(result.isDelivered(), elapsed);
+        if (result.isDelivered()) {
+            backend.latency.record(elapsed);
+        }
+        return result;
     }
-}
 
-class SlackChannelImpl implements ChannelImplementor {
-    private SlackAdapter slackAdapter;
+    public double getHedgeRate() {
+        long urgent = urgentSends.sum();
+        return urgent == 0 ? 0 : (double) hedges.sum() / urgent;
+    }
 
-    public SlackChannelImpl(SlackAdapter slackAdapter) {
-        this.slackAdapter = slackAdapter;
+    public String describe() {
+        StringBuilder text = new StringBuilder(getName()).append(" con respaldo:");
+        for (Backend backend : backends) {
+            text.append(' ').append(backend.name).append(' ').append(backend.breaker.getState())
+                    .append(" (").append(backend.breaker.getOpened()).append(" aperturas, ")
+                    .append(backend.breaker.getRejected()).append(" rechazados, p")
+                    .append(Math.round(hedgeQuantile * 100)).append(' ')
+                    .append(TimeUnit.NANOSECONDS.toMillis(backend.latency.getNanos())).append(" ms);");
+        }
+        return text.append(" cobertura ").append(hedges.sum()).append('/').append(urgentSends.sum())
+                .append(String.format(" urgentes (%.1f%%), %d ganadas, %d cambios de servidor",
+                        getHedgeRate() * 100, hedgesWon.sum(), failovers.sum())).toString();
     }
 
     @Override
-    public void sendMessage(String recipient, String subject, String content, String priority) {
-        System.out.println("Preparando envío por Slack...");
-        slackAdapter.postMessage(recipient, subject, content, priority);
+    public String getName() {
+        return "email";
     }
-}
 
-abstract class Notification {
-    protected ChannelImplementor channel;
+    private static class Backend {
+        final String name;
+        final ChannelImplementor channel;
+        final CircuitBreaker breaker;
+        final LatencyPercentile latency;
 
-    public Notification(ChannelImplementor channel) {
-        this.channel = channel;
+        Backend(String name, ChannelImplementor channel, CircuitBreaker breaker, LatencyPercentile latency) {
+            this.name = name;
+            this.channel = channel;
+            this.breaker = breaker;
+            this.latency = latency;
+        }
     }
 
-    public abstract void send(String recipient, String subject, String content);
+    // Un envío urgente con a lo sumo un segundo intento, sea por cobertura (el primero tarda) o por
+    // cambio de servidor (el primero falló antes de que venciera la cobertura)
+    private class HedgedSend {
+        private final Backend first;
+        private final String recipient;
+        private final String subject;
+        private final String content;
+        private final String priority;
+        private final CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final AtomicBoolean secondLaunched = new AtomicBoolean();
+
+        HedgedSend(Backend first, String recipient, String subject, String content, String priority) {
+            this.first = first;
+            this.recipient = recipient;
+            this.subject = subject;
+            this.content = content;
+            this.priority = priority;
+        }
+
+        CompletableFuture<DeliveryResult> start() {
+            launch(first, false);
+            if (backends.size() > 1) {
+                ScheduledFuture<?> timer = HEDGE_TIMER.schedule(() -> {
+                    if (!result.isDone()) {
+                        launchSecond(true);
+                    }
+                }, first.latency.getNanos(), TimeUnit.NANOSECONDS);
+                result.whenComplete((delivered, error) -> timer.cancel(false));
+            }
+            return result;
+        }
+
+        // Primero se reserva el segundo intento y después se elige servidor: si se eligiera antes y otro
+        // hilo ganara la reserva, la prueba del cortacircuitos quedaría tomada sin envío ni resultado
+        private boolean launchSecond(boolean hedge) {
+            if (!secondLaunched.compareAndSet(false, true)) {
+                return false;
+            }
+            Backend second = available(first);
+            if (second == null) {
+                secondLaunched.set(false);
+                return false;
+            }
+            outstanding.incrementAndGet();
+            if (hedge) {
+                hedges.increment();
+            } else {
+                failovers.increment();
+            }
+            launch(second, hedge);
+            return true;
+        }
+
+        private void launch(Backend backend, boolean hedge) {
+            CompletableFuture.supplyAsync(() -> call(backend, recipient, subject, content, priority), executor)
+                    .whenComplete((delivered, error) -> onResult(delivered != null ? delivered
+                            : DeliveryResult.failed(getName(), recipient, String.valueOf(error)), hedge));
+        }
+
+        private void onResult(DeliveryResult delivered, boolean hedge) {
+            if (delivered.isDelivered()) {
+                if (result.complete(delivered) && hedge) {
+                    hedgesWon.increment();
+                }
+                return;
+            }
+            launchSecond(false);
+            if (outstanding.decrementAndGet() == 0) {
+                result.complete(delivered);
+            }
+        }
+    }
 }
 
-class UrgentNotification extends Notification {
-    public UrgentNotification(ChannelImplementor channel) {
-        super(channel);
+// Histograma log-lineal de latencias: 16 cubetas por potencia de dos (error relativo menor al 6,25%)
+// desde 1 ns hasta unos 18 minutos. Registrar son dos incrementos atómicos, sin candados ni objetos
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        count.increment();
+        sumNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.weakCompareAndSetVolatile(max, nanos)) {
+            max = maxNanos.get();
+        }
+        buckets.getAndIncrement(bucketOf(nanos));
     }
 
-    @Override
-    public void send(String recipient, String subject, String content) {
-        System.out.println("NOTIFICACIÓN URGENTE: Enviando notificación urgente...");
-        String urgentSubject = "URGENTE: " + subject;
-        String urgentContent = "ATENCIÓN INMEDIATA REQUERIDA:\n" + content;
-        channel.sendMessage(recipient, urgentSubject, urgentContent, "HIGH");
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
     }
-}
 
-class InformativeNotification extends Notification {
-    public InformativeNotification(ChannelImplementor channel) {
-        super(channel);
+    // Mayor valor que cae en la cubeta, para que los percentiles nunca se informen por debajo de lo real
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
     }
 
-    @Override
-    public void send(String recipient, String subject, String content) {
-        System.out.println("NOTIFICACIÓN INFORMATIVA: Enviando notificación informativa...");
-        String informativeSubject = "Info: " + subject;
-        channel.sendMessage(recipient, informativeSubject, content, "MEDIUM");
+    public long getCount() {
+        return count.sum();
     }
-}
 
-class MarketingNotification extends Notification {
-    public MarketingNotification(ChannelImplementor channel) {
-        super(channel);
+    public long getSumNanos() {
+        return sumNanos.sum();
     }
 
-    @Override
-    public void send(String recipient, String subject, String content) {
-        System.out.println("NOTIFICACIÓN DE MARKETING: Enviando notificación de marketing...");
-        String marketingSubject = subject;
-        String marketingContent = content + "\n\nGracias por ser parte de nuestra comunidad!";
-        channel.sendMessage(recipient, marketingSubject, marketingContent, "LOW");
+    public long getMaxNanos() {
+        return maxNanos.get();
     }
-}
 
-interface EmailAdapter {
-    void send(String to, String subject, String body, String priority);
+    public long percentileNanos(double quantile) {
+        long target = Math.max(1, (long) Math.ceil(quantile * count.sum()));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(bucket), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
 }
 
-interface SMSAdapter {
-    void sendSMS(String phoneNumber, String message, String priority);
-}
+// Mensajes enviados, entregados y fallidos por canal y la latencia de cada llamada al proveedor
+// (un mensaje suelto o un lote entero). Es lo que hace falta para dimensionar: cuántos envíos por
+// segundo aguanta cada proveedor y con qué latencia
+class ChannelMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
 
-interface SlackAdapter {
-    void postMessage(String channel, String title, String message, String priority);
-}
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
 
-class OutlookExchangeServer {
-    public void sendExchangeEmail(String toAddress, String emailSubject,
-                                  String emailBody, boolean isHighPriority) {
-        System.out.println("SERVIDOR EXCHANGE: Enviando email:");
-        System.out.println("   Para: " + toAddress);
-        System.out.println("   Asunto: " + emailSubject);
-        System.out.println("   Prioridad Alta: " + isHighPriority);
-        System.out.println("   Email enviado via Exchange");
+    public void record(String channel, boolean batch, int messages, int delivered, long nanos) {
+        Series target = series.computeIfAbsent(channel, key -> new Series());
+        target.messages.add(messages);
+        target.delivered.add(delivered);
+        (batch ? target.batchLatency : target.messageLatency).record(nanos);
     }
-}
 
-class TwilioSMSService {
-    public boolean transmitSMS(String destinationNumber, String textContent,
-                               String urgencyLevel) {
-        System.out.println("API TWILIO: Enviando SMS:");
-        System.out.println("   Destino: " + destinationNumber);
-        System.out.println("   Mensaje: " + textContent);
-        System.out.println("   Urgencia: " + urgencyLevel);
-        System.out.println("   SMS enviado via Twilio");
-        return true;
+    public long getMessages(String channel) {
+        Series target = series.get(channel);
+        return target == null ? 0 : target.messages.sum();
     }
-}
 
-class LegacySMTPServer {
-    public void relayMessage(String recipient, String title, String body, int priorityCode) {
-        System.out.println("SMTP LEGACY: Enviando email:");
-        System.out.println("   Destinatario: " + recipient);
-        System.out.println("   Título: " + title);
-        System.out.println("   Código Prioridad: " + priorityCode);
-        System.out.println("   Email enviado via SMTP Legacy");
+    // Formato de texto de Prometheus; sirve tal cual para el colector de archivos de node_exporter
+    public void writePrometheus(Writer writer) throws IOException {
+        Map<String, Series> sorted = new TreeMap<>(series);
+        writer.write("# HELP notificaciones_mensajes_total Mensajes enviados al proveedor por canal y resultado\n");
+        writer.write("# TYPE notificaciones_mensajes_total counter\n");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            long delivered = entry.getValue().delivered.sum();
+            writer.write("notificaciones_mensajes_total{canal=\"" + entry.getKey() + "\",resultado=\"entregado\"} "
+                    + delivered + "\n");
+            writer.write("notificaciones_mensajes_total{canal=\"" + entry.getKey() + "\",resultado=\"fallido\"} "
+                    + (entry.getValue().messages.sum() - delivered) + "\n");
+        }
+        writer.write("# HELP notificaciones_latencia_segundos Duración de cada llamada al proveedor\n");
+        writer.write("# TYPE notificaciones_latencia_segundos summary\n");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            writeSummary(writer, entry.getKey(), "mensaje", entry.getValue().messageLatency);
+            writeSummary(writer, entry.getKey(), "lote", entry.getValue().batchLatency);
+        }
     }
-}
 
-class SlackWebAPI {
-    public void publishMessage(String workspace, String channelName,
-                               String messageTitle, String messageBody, boolean isPriority) {
-        System.out.println("API SLACK: Publicando mensaje:");
-        System.out.println("   Canal: " + channelName);
-        System.out.println("   Título: " + messageTitle);
-        System.out.println("   Es Prioritario: " + isPriority);
-        System.out.println("   Mensaje publicado en Slack");
+    private static void writeSummary(Writer writer, String channel, String call, LatencyHistogram histogram)
+            throws IOException {
+        long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        String labels = "canal=\"" + channel + "\",llamada=\"" + call + "\"";
+        for (double quantile : QUANTILES) {
+            writer.write("notificaciones_latencia_segundos{" + labels + ",quantile=\"" + quantile + "\"} "
+                    + seconds(histogram.percentileNanos(quantile)) + "\n");
+        }
+        writer.write("notificaciones_latencia_segundos_sum{" + labels + "} " + seconds(histogram.getSumNanos()) + "\n");
+        writer.write("notificaciones_latencia_segundos_count{" + labels + "} " + count + "\n");
     }
-}
 
-class OutlookExchangeAdapter implements EmailAdapter {
-    private OutlookExchangeServer exchangeServer;
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1_000_000_000.0);
+    }
 
-    public OutlookExchangeAdapter(OutlookExchangeServer exchangeServer) {
-        this.exchangeServer = exchangeServer;
+    public void print() {
+        for (Map.Entry<String, Series> entry : new TreeMap<>(series).entrySet()) {
+            Series values = entry.getValue();
+            LatencyHistogram latency = values.messageLatency;
+            System.out.printf("%s: %d mensajes, %d fallidos, p50 %.2f ms, p99 %.2f ms, máx %.2f ms%n",
+                    entry.getKey(), values.messages.sum(), values.messages.sum() - values.delivered.sum(),
+                    latency.percentileNanos(0.5) / 1e6, latency.percentileNanos(0.99) / 1e6,
+                    latency.getMaxNanos() / 1e6);
+        }
     }
 
-    @Override
-    public void send(String to, String subject, String body, String priority) {
-        boolean isHighPriority = "HIGH".equals(priority);
-        exchangeServer.sendExchangeEmail(to, subject, body, isHighPriority);
+    private static class Series {
+        final LongAdder messages = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LatencyHistogram messageLatency = new LatencyHistogram();
+        final LatencyHistogram batchLatency = new LatencyHistogram();
     }
 }
 
-class LegacySMTPAdapter implements EmailAdapter {
-    private LegacySMTPServer smtpServer;
+class MeteredChannel implements ChannelImplementor {
+    private final ChannelImplementor delegate;
+    private final String key;
+    private final ChannelMetrics metrics;
 
-    public LegacySMTPAdapter(LegacySMTPServer smtpServer) {
-        this.smtpServer = smtpServer;
+    public MeteredChannel(ChannelImplementor delegate, String key, ChannelMetrics metrics) {
+        this.delegate = delegate;
+        this.key = key;
+        this.metrics = metrics;
     }
 
+    // Una excepción del proveedor cuenta como fallo y se propaga igual
     @Override
-    public void send(String to, String subject, String body, String priority) {
-        int priorityCode = convertPriorityToCode(priority);
-        smtpServer.relayMessage(to, subject, body, priorityCode);
+    public DeliveryResult sendMessage(String recipient, String subject, String content, String priority) {
+        long start = System.nanoTime();
+        boolean delivered = false;
+        try {
+            DeliveryResult result = delegate.sendMessage(recipient, subject, content, priority);
+            delivered = result.isDelivered();
+            return result;
+        } finally {
+            metrics.record(key, false, 1, delivered ? 1 : 0, System.nanoTime() - start);
+        }
     }
 
-    private int convertPriorityToCode(String priority) {
-        switch (priority) {
-            case "HIGH": return 1;
-            case "MEDIUM": return 2;
-            case "LOW": return 3;
-            default: return 2;
+    @Override
+    public List<DeliveryResult> sendBatch(List<OutgoingMessage> messages) {
+        long start = System.nanoTime();
+        int delivered = 0;
+        try {
+            List<DeliveryResult> results = delegate.sendBatch(messages);
+            for (DeliveryResult result : results) {
+                if (result.isDelivered()) {
+                    delivered++;
+                }
+            }
+            return results;
+        } finally {
+            metrics.record(key, true, messages.size(), delivered, System.nanoTime() - start);
         }
     }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
 }
 
-class TwilioSMSAdapter implements SMSAdapter {
-    private TwilioSMSService twilioService;
+// Escribe periódicamente una instantánea de las métricas en un archivo. Se escribe en un temporal
+// y se renombra para que quien lo lea nunca vea un archivo a medias
+class ChannelMetricsReporter implements Closeable {
+    private final ChannelMetrics metrics;
+    private final Path path;
+    private final ScheduledExecutorService scheduler;
+    private boolean failed;
 
-    public TwilioSMSAdapter(TwilioSMSService twilioService) {
-        this.twilioService = twilioService;
+    public ChannelMetricsReporter(ChannelMetrics metrics, Path path, long intervalMillis) {
+        this.metrics = metrics;
+        this.path = path;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("metricas-"));
+        scheduler.scheduleAtFixedRate(this::writeSnapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void writeSnapshot() {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                metrics.writePrometheus(writer);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!failed) {
+                System.out.println("No se pudieron escribir las métricas en " + path + ": " + e);
+                failed = true;
+            }
+        }
     }
 
+    // Al cerrar se escribe una última instantánea
     @Override
-    public void sendSMS(String phoneNumber, String message, String priority) {
-        String urgencyLevel = priority.toLowerCase() + "_urgency";
-        twilioService.transmitSMS(phoneNumber, message, urgencyLevel);
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeSnapshot();
     }
 }
 
-class SlackWebAPIAdapter implements SlackAdapter {
-    private SlackWebAPI slackAPI;
+// Registro de los canales disponibles, cada uno con su pool de clientes de larga vida. Un hilo de
+// mantenimiento revisa periódicamente la salud de los clientes libres y cierra los inactivos
+class ChannelRegistry {
+    private static final ChannelRegistry DEFAULT = createDefault();
 
-    public SlackWebAPIAdapter(SlackWebAPI slackAPI) {
-        this.slackAPI = slackAPI;
+    private final Map<String, ChannelPool> pools = new ConcurrentHashMap<>();
+    private final Map<String, ChannelImplementor> channels = new ConcurrentHashMap<>();
+    private final List<ProviderThrottle> throttles = new CopyOnWriteArrayList<>();
+    private final long borrowTimeoutMillis;
+    private final ScheduledExecutorService maintenance;
+    private final List<ChannelImplementor> composites = new CopyOnWriteArrayList<>();
+    private final ChannelMetrics metrics = new ChannelMetrics();
+    private NotificationCoalescer coalescer;
+    private ChannelMetricsReporter reporter;
+
+    public ChannelRegistry(long borrowTimeoutMillis, long maintenanceMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(DispatchThreads.platformFactory("registro-"));
+        maintenance.scheduleWithFixedDelay(this::maintain, maintenanceMillis, maintenanceMillis, TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    public void postMessage(String channel, String title, String message, String priority) {
-        boolean isPriority = "HIGH".equals(priority);
-        slackAPI.publishMessage("empresa-workspace", channel, title, message, isPriority);
+    public static ChannelRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    // Las tasas son las que publica cada proveedor; el límite de concurrencia no pasa del tamaño del pool
+    private static ChannelRegistry createDefault() {
+        ChannelRegistry registry = new ChannelRegistry(30_000, 10_000);
+        ProviderThrottle exchange = registry.addThrottle(new ProviderThrottle("exchange",
+                new TokenBucket(30, 30), null, new AdaptiveConcurrencyLimit(4, 1, 16, 2_000, 0.9)));
+        ProviderThrottle smtp = registry.addThrottle(new ProviderThrottle("smtp",
+                new TokenBucket(20, 20), null, new AdaptiveConcurrencyLimit(4, 1, 16, 2_000, 0.9)));
+        ProviderThrottle twilio = registry.addThrottle(new ProviderThrottle("twilio",
+                new TokenBucket(100, 100), new KeyedTokenBuckets(1, 3, 100_000),
+                new AdaptiveConcurrencyLimit(4, 1, 16, 1_000, 0.9)));
+        ProviderThrottle slack = registry.addThrottle(new ProviderThrottle("slack",
+                new TokenBucket(50, 20), new KeyedTokenBuckets(1, 1, 10_000),
+                new AdaptiveConcurrencyLimit(4, 1, 16, 1_000, 0.9)));
+
+        registry.register("email-exchange", "email", 16, 60_000, () -> {
+            OutlookExchangeServer exchangeServer = new OutlookExchangeServer();
+            EmailAdapter adapter = new ThrottledEmailAdapter(new OutlookExchangeAdapter(exchangeServer), exchange);
+            return new PooledChannel(new EmailChannelImpl(adapter), exchangeServer);
+        });
+        SmtpClient smtpTransport = createSmtpTransport();
+        registry.register("email-smtp", "email", 16, 60_000, () -> {
+            LegacySMTPServer smtpServer = new LegacySMTPServer(smtpTransport);
+            EmailAdapter adapter = new ThrottledEmailAdapter(new LegacySMTPAdapter(smtpServer), smtp);
+            return new PooledChannel(new EmailChannelImpl(adapter), smtpServer);
+        });
+        registry.register("sms", "sms", 16, 60_000, () -> {
+            TwilioSMSService twilioService = new TwilioSMSService();
+            SMSAdapter adapter = new ThrottledSMSAdapter(new TwilioSMSAdapter(twilioService), twilio);
+            return new PooledChannel(new SMSChannelImpl(adapter), twilioService);
+        });
+        registry.register("slack", "slack", 16, 60_000, () -> {
+            SlackWebAPI slackAPI = new SlackWebAPI();
+            SlackAdapter adapter = new ThrottledSlackAdapter(new SlackWebAPIAdapter(slackAPI), slack);
+            return new PooledChannel(new SlackChannelImpl(adapter), slackAPI);
+        });
+        registry.meter("email-exchange", "email-smtp", "sms", "slack");
+        // Con -Dnotificaciones.metricas=<archivo> se escribe una instantánea cada notificaciones.metricas-ms
+        String metricsFile = System.getProperty("notificaciones.metricas");
+        if (metricsFile != null && !metricsFile.isEmpty()) {
+            registry.reportMetrics(Paths.get(metricsFile), Long.getLong("notificaciones.metricas-ms", 1000));
+        }
+
+        // Exchange primero y SMTP de respaldo; más lento que el objetivo del límite adaptativo cuenta como fallo
+        FailoverEmailChannel email = new FailoverEmailChannel(0.95);
+        email.addBackend("exchange", registry.channel("email-exchange"), new CircuitBreaker(5, 10_000, 3_000));
+        email.addBackend("smtp", registry.channel("email-smtp"), new CircuitBreaker(5, 10_000, 3_000));
+        registry.register("email", email);
+
+        // Ventana de agrupación de repetidas; con -Dnotificaciones.agrupar-ms=0 no se agrupa
+        long coalesceMillis = Long.getLong("notificaciones.agrupar-ms", 10_000);
+        if (coalesceMillis > 0) {
+            registry.coalesce(new NotificationCoalescer(coalesceMillis, 100_000),
+                    "email", "email-exchange", "email-smtp", "sms", "slack");
+        }
+        return registry;
+    }
+
+    // Con -Dsmtp.servidor=host:puerto el SMTP legacy envía de verdad; sin la propiedad solo se simula
+    private static SmtpClient createSmtpTransport() {
+        String relay = System.getProperty("smtp.servidor");
+        if (relay == null || relay.isEmpty()) {
+            return null;
+        }
+        try {
+            return new SmtpClient(SmtpClient.parseAddress(relay), "notificaciones.empresa.com",
+                    "notificaciones@empresa.com", 8, 32, 1000, 30_000, 60_000);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("No se pudo crear el transporte SMTP hacia " + relay + ", se simula: " + e);
+            return null;
+        }
+    }
+
+    public ProviderThrottle addThrottle(ProviderThrottle throttle) {
+        throttles.add(throttle);
+        return throttle;
+    }
+
+    public void register(String key, String channelName, int maxSize, long idleTimeoutMillis,
+                         Supplier<PooledChannel> factory) {
+        ChannelPool pool = new ChannelPool(key, factory, maxSize, idleTimeoutMillis);
+        pools.put(key, pool);
+        channels.put(key, new BorrowedChannel(pool, channelName, borrowTimeoutMillis));
+    }
+
+    // Canales compuestos sobre otros del registro; no tienen pool propio
+    public void register(String key, ChannelImplementor channel) {
+        channels.put(key, channel);
+        composites.add(channel);
+    }
+
+    // Mide cada llamada al proveedor; se aplica sobre los pools, debajo de los canales compuestos
+    public void meter(String... keys) {
+        for (String key : keys) {
+            channels.put(key, new MeteredChannel(channel(key), key, metrics));
+        }
+    }
+
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void reportMetrics(Path path, long intervalMillis) {
+        reporter = new ChannelMetricsReporter(metrics, path, intervalMillis);
+    }
+
+    // Los canales ya compuestos (el email con respaldo) siguen usando los originales por dentro,
+    // así que una notificación se agrupa una sola vez. La primera y el resumen van por los carriles
+    public void coalesce(NotificationCoalescer coalescer, String... keys) {
+        this.coalescer = coalescer;
+        for (String key : keys) {
+            channels.put(key, new CoalescingChannel(key, channel(key), coalescer, PriorityDispatcher.getDefault()));
+        }
+    }
+
+    // Devuelve siempre la misma instancia por clave: las notificaciones la comparten sin crear backends
+    public ChannelImplementor channel(String key) {
+        ChannelImplementor channel = channels.get(key);
+        if (channel == null) {
+            throw new IllegalArgumentException("Canal no registrado: " + key);
+        }
+        return channel;
+    }
+
+    public boolean contains(String key) {
+        return channels.containsKey(key);
+    }
+
+    // Clave con la que se registró un canal de este registro, o null si no viene de aquí
+    public String keyOf(ChannelImplementor channel) {
+        for (Map.Entry<String, ChannelImplementor> entry : channels.entrySet()) {
+            if (entry.getValue() == channel) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private void maintain() {
+        for (ChannelPool pool : pools.values()) {
+            pool.checkHealth();
+            pool.evictIdle();
+        }
+    }
+
+    public void printStats() {
+        for (ChannelPool pool : pools.values()) {
+            System.out.println(pool.describe());
+        }
+        for (ProviderThrottle throttle : throttles) {
+            System.out.println(throttle.describe());
+        }
+        for (ChannelImplementor channel : composites) {
+            if (channel instanceof FailoverEmailChannel) {
+                System.out.println(((FailoverEmailChannel) channel).describe());
+            }
+        }
+        if (coalescer != null) {
+            System.out.println(coalescer.describe());
+        }
+        metrics.print();
+    }
+
+    public void close() {
+        maintenance.shutdownNow();
+        for (ChannelPool pool : pools.values()) {
+            pool.close();
+        }
+        if (reporter != null) {
+            reporter.close();
+        }
     }
 }
 
 class NotificationFactory {
 
+    // Los canales salen del registro compartido, así que crear una notificación no abre conexiones
     public static Notification createUrgentEmailNotification() {
-        OutlookExchangeServer exchangeServer = new OutlookExchangeServer();
-        EmailAdapter emailAdapter = new OutlookExchangeAdapter(exchangeServer);
-        ChannelImplementor emailChannel = new EmailChannelImpl(emailAdapter);
-        return new UrgentNotification(emailChannel);
+        return new UrgentNotification(ChannelRegistry.getDefault().channel("email"));
     }
 
     public static Notification createInformativeSMSNotification() {
-        TwilioSMSService twilioService = new TwilioSMSService();
-        SMSAdapter smsAdapter = new TwilioSMSAdapter(twilioService);
-        ChannelImplementor smsChannel = new SMSChannelImpl(smsAdapter);
-        return new InformativeNotification(smsChannel);
+        return new InformativeNotification(ChannelRegistry.getDefault().channel("sms"));
     }
 
     public static Notification createMarketingSlackNotification() {
-        SlackWebAPI slackAPI = new SlackWebAPI();
-        SlackAdapter slackAdapter = new SlackWebAPIAdapter(slackAPI);
-        ChannelImplementor slackChannel = new SlackChannelImpl(slackAdapter);
-        return new MarketingNotification(slackChannel);
+        return new MarketingNotification(ChannelRegistry.getDefault().channel("slack"));
     }
 }
 
 public class Main {
     private static Scanner scanner = new Scanner(System.in);
+    private static final int OUTBOX_SEGMENT_BYTES = 64 * 1024 * 1024;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--smtp-bench")) {
+            SmtpBenchmark.run(args);
+            return;
+        }
+        if (args.length > 0) {
+            runCampaign(args);
+            return;
+        }
+
         System.out.println(" SISTEMA DE NOTIFICACIONES EMPRESARIALES");
 
         boolean continueRunning = true;
@@ -262,6 +4671,10 @@ public class Main {
                     usePredefinedNotifications();
                     break;
                 case 3:
+                    System.out.println("\nConexiones:");
+                    ChannelRegistry.getDefault().printStats();
+                    System.out.println("\nEspera por prioridad:");
+                    PriorityDispatcher.getDefault().printStats();
                     System.out.println("\n¡Gracias por usar el sistema de notificaciones!");
                     continueRunning = false;
                     break;
@@ -270,9 +4683,55 @@ public class Main {
             }
         }
 
+        ChannelRegistry.getDefault().close();
         scanner.close();
     }
 
+    public static void runCampaign(String[] args) {
+        CampaignOptions options;
+        try {
+            options = CampaignOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Uso: Main --campana <destinatarios.csv> --asunto <plantilla> --mensaje <plantilla>"
+                    + " [--canal email|email-exchange|email-smtp|sms|slack] [--hilos N] [--lote N] [--progreso-ms N]"
+                    + " [--outbox <directorio>]");
+            return;
+        }
+
+        OutboxLog outbox = null;
+        try {
+            ChannelDispatcher dispatcher = PriorityDispatcher.getDefault();
+            OutboxDispatcher durable = null;
+            if (options.getOutbox() != null) {
+                outbox = OutboxLog.open(options.getOutbox(), OUTBOX_SEGMENT_BYTES, 2);
+                durable = new OutboxDispatcher(outbox, ChannelRegistry.getDefault(), dispatcher, 200, 30_000, 8);
+                int pending = durable.replayPending();
+                if (pending > 0) {
+                    System.out.println("Outbox: reenviando " + pending + " notificaciones pendientes");
+                }
+                dispatcher = durable;
+            }
+
+            MarketingNotification notification =
+                    new MarketingNotification(createChannel(options.getChannel()), dispatcher);
+            notification.sendCampaign(options.getRecipients(), options.getSubject(), options.getMessage(),
+                    options.getParallelism(), options.getChunkSize(), options.getProgressMillis()).print();
+            if (durable != null) {
+                durable.printStats();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error en la campaña: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (outbox != null) {
+                outbox.close();
+            }
+            ChannelRegistry.getDefault().close();
+        }
+    }
+
     private static void showMainMenu() {
         System.out.println("\n MENU PRINCIPAL ");
         System.out.println("1. Crear notificación personalizada");
@@ -307,7 +4766,7 @@ public class Main {
         Notification notification = createNotification(notificationType, channel);
 
         System.out.println("\n--- ENVIANDO NOTIFICACIÓN ---");
-        notification.send(recipient, subject, message);
+        printResult(notification.send(recipient, subject, message));
 
         System.out.println("\nPresione Enter para continuar...");
         scanner.nextLine();
@@ -337,7 +4796,8 @@ public class Main {
         System.out.println("2. Email (SMTP Legacy)");
         System.out.println("3. SMS (Twilio)");
         System.out.println("4. Slack");
-        System.out.print("Seleccione el canal (1-4): ");
+        System.out.println("5. Email (Exchange con respaldo SMTP)");
+        System.out.print("Seleccione el canal (1-5): ");
 
         int option = readOption();
         switch (option) {
@@ -345,6 +4805,7 @@ public class Main {
             case 2: return "email-smtp";
             case 3: return "sms";
             case 4: return "slack";
+            case 5: return "email";
             default:
                 System.out.println("Opción inválida, usando 'email-exchange' por defecto.");
                 return "email-exchange";
@@ -367,32 +4828,13 @@ public class Main {
     }
 
     private static ChannelImplementor createChannel(String channel) {
-        switch (channel) {
-            case "email-exchange":
-                OutlookExchangeServer exchangeServer = new OutlookExchangeServer();
-                EmailAdapter exchangeAdapter = new OutlookExchangeAdapter(exchangeServer);
-                return new EmailChannelImpl(exchangeAdapter);
-
-            case "email-smtp":
-                LegacySMTPServer smtpServer = new LegacySMTPServer();
-                EmailAdapter smtpAdapter = new LegacySMTPAdapter(smtpServer);
-                return new EmailChannelImpl(smtpAdapter);
-
-            case "sms":
-                TwilioSMSService twilioService = new TwilioSMSService();
-                SMSAdapter smsAdapter = new TwilioSMSAdapter(twilioService);
-                return new SMSChannelImpl(smsAdapter);
-
-            case "slack":
-                SlackWebAPI slackAPI = new SlackWebAPI();
-                SlackAdapter slackAdapter = new SlackWebAPIAdapter(slackAPI);
-                return new SlackChannelImpl(slackAdapter);
+        ChannelRegistry registry = ChannelRegistry.getDefault();
+        return registry.channel(registry.contains(channel) ? channel : "email-exchange");
+    }
 
-            default:
-                OutlookExchangeServer defaultServer = new OutlookExchangeServer();
-                EmailAdapter defaultAdapter = new OutlookExchangeAdapter(defaultServer);
-                return new EmailChannelImpl(defaultAdapter);
-        }
+    // La interfaz espera a cada envío para mostrar su resultado antes de seguir
+    private static void printResult(CompletableFuture<DeliveryResult> delivery) {
+        System.out.println("Resultado: " + delivery.join());
     }
 
     private static void usePredefinedNotifications() {
@@ -409,22 +4851,22 @@ public class Main {
             case 1:
                 System.out.println("\n NOTIFICACIÓN URGENTE POR EMAIL ");
                 Notification urgentEmail = NotificationFactory.createUrgentEmailNotification();
-                urgentEmail.send("admin@empresa.com", "Servidor Caído",
-                        "El servidor de producción ha dejado de responder.");
+                printResult(urgentEmail.send("admin@empresa.com", "Servidor Caído",
+                        "El servidor de producción ha dejado de responder."));
                 break;
 
             case 2:
                 System.out.println("\n NOTIFICACIÓN INFORMATIVA POR SMS ");
                 Notification infoSMS = NotificationFactory.createInformativeSMSNotification();
-                infoSMS.send("+1234567890", "Mantenimiento Programado",
-                        "El sistema estará en mantenimiento el domingo de 2-4 AM.");
+                printResult(infoSMS.send("+1234567890", "Mantenimiento Programado",
+                        "El sistema estará en mantenimiento el domingo de 2-4 AM."));
                 break;
 
             case 3:
                 System.out.println("\n NOTIFICACIÓN DE MARKETING POR SLACK ");
                 Notification marketingSlack = NotificationFactory.createMarketingSlackNotification();
-                marketingSlack.send("#general", "Nueva Funcionalidad",
-                        "Ahora puedes personalizar tu dashboard!");
+                printResult(marketingSlack.send("#general", "Nueva Funcionalidad",
+                        "Ahora puedes personalizar tu dashboard!"));
                 break;
 
             case 4:
@@ -432,26 +4874,24 @@ public class Main {
 
                 System.out.println("\n1. Notificación Urgente por Email:");
                 Notification urgentEmail2 = NotificationFactory.createUrgentEmailNotification();
-                urgentEmail2.send("admin@empresa.com", "Servidor Caído",
-                        "El servidor de producción ha dejado de responder.");
+                printResult(urgentEmail2.send("admin@empresa.com", "Servidor Caído",
+                        "El servidor de producción ha dejado de responder."));
 
                 System.out.println("\n2. Notificación Informativa por SMS:");
                 Notification infoSMS2 = NotificationFactory.createInformativeSMSNotification();
-                infoSMS2.send("+1234567890", "Mantenimiento Programado",
-                        "El sistema estará en mantenimiento el domingo de 2-4 AM.");
+                printResult(infoSMS2.send("+1234567890", "Mantenimiento Programado",
+                        "El sistema estará en mantenimiento el domingo de 2-4 AM."));
 
                 System.out.println("\n3. Notificación de Marketing por Slack:");
                 Notification marketingSlack2 = NotificationFactory.createMarketingSlackNotification();
-                marketingSlack2.send("#general", "Nueva Funcionalidad",
-                        "Ahora puedes personalizar tu dashboard!");
+                printResult(marketingSlack2.send("#general", "Nueva Funcionalidad",
+                        "Ahora puedes personalizar tu dashboard!"));
 
                 System.out.println("\n4. Notificación Urgente por SMS (combinación personalizada):");
-                TwilioSMSService twilioService = new TwilioSMSService();
-                SMSAdapter smsAdapter = new TwilioSMSAdapter(twilioService);
-                ChannelImplementor smsChannel = new SMSChannelImpl(smsAdapter);
+                ChannelImplementor smsChannel = ChannelRegistry.getDefault().channel("sms");
                 Notification urgentSMS = new UrgentNotification(smsChannel);
-                urgentSMS.send("+1234567890", "Fallo Crítico",
-                        "Base de datos principal no responde.");
+                printResult(urgentSMS.send("+1234567890", "Fallo Crítico",
+                        "Base de datos principal no responde."));
                 break;
 
             default: